@@ -0,0 +1,80 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.benchmark;
+
+import com.blazebit.jbake.mojo.BuildMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures full bakes of the <code>jbake:build</code> goal, including the creation of the oven and the template engines.
+ *
+ * @author Christian Beikov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BakeBenchmark {
+
+    @Param({ "100", "1000" })
+    private int pages;
+
+    @Param({ "20" })
+    private int tags;
+
+    @Param({ "ASCIIDOC", "MARKDOWN" })
+    private SyntheticSite.Markup markup;
+
+    @Param({ "1" })
+    private int threads;
+
+    private SyntheticSite site;
+
+    @Setup
+    public void setup() throws IOException {
+        site = SyntheticSite.create(pages, tags, markup);
+    }
+
+    @TearDown
+    public void tearDown() {
+        site.delete();
+    }
+
+    @Benchmark
+    public BuildMojo build() throws MojoExecutionException, MojoFailureException {
+        BuildMojo mojo = Mojos.create(BuildMojo.class, site, threads);
+        mojo.execute();
+        return mojo;
+    }
+}
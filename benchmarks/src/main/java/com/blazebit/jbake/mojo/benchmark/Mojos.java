@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.benchmark;
+
+import com.blazebit.jbake.mojo.BuildMojo;
+import org.apache.maven.monitor.logging.DefaultLog;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+
+import java.lang.reflect.Field;
+
+/**
+ * Configures mojos the way Maven would inject their parameters.
+ *
+ * @author Christian Beikov
+ */
+public class Mojos {
+
+    private Mojos() {
+    }
+
+    /**
+     * Creates a mojo for the given site that logs only warnings and errors.
+     *
+     * @param mojoClass The mojo class
+     * @param site The site to bake
+     * @param threads The number of parser threads
+     * @return The mojo
+     */
+    public static <T extends BuildMojo> T create(Class<T> mojoClass, SyntheticSite site, int threads) {
+        try {
+            T mojo = mojoClass.getDeclaredConstructor().newInstance();
+            mojo.setLog(new DefaultLog(new ConsoleLogger(Logger.LEVEL_WARN, mojoClass.getSimpleName())));
+            set(mojo, "project", new MavenProject());
+            set(mojo, "inputDirectory", site.getSourceDirectory());
+            set(mojo, "outputDirectory", site.getOutputDirectory());
+            set(mojo, "cacheDirectory", site.getCacheDirectory());
+            set(mojo, "threads", threads);
+            return mojo;
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Could not create " + mojoClass.getName(), ex);
+        }
+    }
+
+    /**
+     * Sets the parameter field of the given name that is declared by the mojo class or one of its super classes.
+     *
+     * @param mojo The mojo
+     * @param name The field name
+     * @param value The value
+     */
+    public static void set(AbstractMojo mojo, String name, Object value) {
+        for (Class<?> c = mojo.getClass(); c != Object.class; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(mojo, value);
+                return;
+            } catch (NoSuchFieldException ex) {
+                // Try the super class
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException("Could not set " + name, ex);
+            }
+        }
+        throw new IllegalArgumentException("No parameter " + name + " in " + mojo.getClass().getName());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.benchmark;
+
+import com.blazebit.jbake.mojo.ServeMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the request throughput of the server started by the <code>jbake:serve</code> goal.
+ * Connections are kept alive like a browser would do, run with <code>-t</code> to simulate concurrent clients.
+ *
+ * @author Christian Beikov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ServeBenchmark {
+
+    private static final long STARTUP_TIMEOUT = TimeUnit.MINUTES.toMillis(2);
+
+    @Param({ "/index.html", "/blog/post1.html", "/css/site.css" })
+    private String path;
+
+    @Param({ "false", "true" })
+    private boolean compression;
+
+    @Param({ "0", "67108864" })
+    private long responseCacheSize;
+
+    @Param({ "true" })
+    private boolean liveReload;
+
+    private SyntheticSite site;
+    private Thread serveThread;
+    private URL url;
+
+    @Setup
+    public void setup() throws Exception {
+        site = SyntheticSite.create(100, 20, SyntheticSite.Markup.MARKDOWN);
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+
+        final ServeMojo mojo = Mojos.create(ServeMojo.class, site, 1);
+        Mojos.set(mojo, "listenAddress", "127.0.0.1");
+        Mojos.set(mojo, "port", port);
+        Mojos.set(mojo, "liveReload", liveReload);
+        Mojos.set(mojo, "compression", compression);
+        Mojos.set(mojo, "responseCacheSize", responseCacheSize);
+        Mojos.set(mojo, "streamedFileThreshold", 1048576L);
+        Mojos.set(mojo, "quietPeriod", 50L);
+        Mojos.set(mojo, "warmUp", false);
+
+        serveThread = new Thread("ServeBenchmark") {
+            @Override
+            public void run() {
+                try {
+                    mojo.execute();
+                } catch (MojoExecutionException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        serveThread.start();
+
+        // The server is started before the initial bake, so wait until the page exists
+        url = new URL("http", "127.0.0.1", port, path);
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while (!isServed()) {
+            if (System.currentTimeMillis() > deadline || !serveThread.isAlive()) {
+                throw new IllegalStateException("Could not serve " + url);
+            }
+            Thread.sleep(100L);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        // The watch loop returns when interrupted and stops the server
+        serveThread.interrupt();
+        serveThread.join();
+        site.delete();
+    }
+
+    @Benchmark
+    public int get() throws IOException {
+        return request();
+    }
+
+    private boolean isServed() {
+        try {
+            return request() == HttpURLConnection.HTTP_OK;
+        } catch (IOException ex) {
+            // The server isn't started yet
+            return false;
+        }
+    }
+
+    private int request() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        if (compression) {
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+        }
+        int status = connection.getResponseCode();
+        InputStream is = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (is != null) {
+            // Reading the whole response and closing the stream returns the connection to the keep-alive cache
+            byte[] buffer = new byte[8192];
+            try {
+                while (is.read(buffer) != -1) {
+                    // Discard
+                }
+            } finally {
+                is.close();
+            }
+        }
+        return status;
+    }
+}
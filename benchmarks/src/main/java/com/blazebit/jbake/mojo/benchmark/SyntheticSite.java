@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Generates a JBake site with a configurable number of posts and tags that uses FreeMarker templates.
+ *
+ * @author Christian Beikov
+ */
+public class SyntheticSite {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String[] TEMPLATES = {
+        "index", "post", "page", "tags", "archive", "feed", "sitemap"
+    };
+
+    public static enum Markup {
+        ASCIIDOC("adoc"),
+        MARKDOWN("md");
+
+        private final String extension;
+
+        private Markup(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private final File directory;
+    private final File sourceDirectory;
+    private final File outputDirectory;
+    private final File cacheDirectory;
+
+    private SyntheticSite(File directory) {
+        this.directory = directory;
+        this.sourceDirectory = new File(directory, "src");
+        this.outputDirectory = new File(directory, "output");
+        this.cacheDirectory = new File(directory, "cache");
+    }
+
+    /**
+     * Creates a site in a new temporary directory.
+     *
+     * @param pages The number of posts
+     * @param tags The number of distinct tags, every post has two of them
+     * @param markup The markup language of the posts
+     * @return The site
+     * @throws IOException
+     */
+    public static SyntheticSite create(int pages, int tags, Markup markup) throws IOException {
+        SyntheticSite site = new SyntheticSite(Files.createTempDirectory("jbake-benchmark").toFile());
+        File source = site.sourceDirectory;
+        write(new File(source, "jbake.properties"), "site.host=http://localhost:8820\n"
+            + "render.tags=true\n"
+            + "render.sitemap=true\n"
+            + "render.archive=true\n"
+            + "render.feed=true\n");
+
+        for (String template : TEMPLATES) {
+            write(new File(source, "templates/" + template + ".ftl"), "<html><head><link rel=\"stylesheet\" href=\"${content.rootpath!}css/site.css\"></head><body>\n"
+                + "<h1>" + template + "</h1>\n"
+                + "<#if content.title??>${content.title}</#if>\n"
+                + "<#if content.body??>${content.body}</#if>\n"
+                + "<#list published_posts as post><a href=\"${post.uri}\">${post.title}</a></#list>\n"
+                + "</body></html>\n");
+        }
+
+        write(new File(source, "assets/css/site.css"), "body { font-family: sans-serif; }\n");
+        write(new File(source, "content/about.html"), "title=About\ntype=page\nstatus=published\n~~~~~~\n\n<p>About this site.</p>\n");
+        for (int i = 0; i < pages; i++) {
+            write(site.getPost(i, markup), post(i, Math.max(1, tags), markup));
+        }
+        return site;
+    }
+
+    private static String post(int i, int tags, Markup markup) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("title=Post ").append(i).append('\n');
+        sb.append("date=2016-01-").append(String.format("%02d", 1 + i % 28)).append('\n');
+        sb.append("type=post\n");
+        sb.append("tags=tag").append(i % tags).append(",tag").append((i + 1) % tags).append('\n');
+        sb.append("status=published\n");
+        sb.append("~~~~~~\n\n");
+        for (int paragraph = 0; paragraph < 3; paragraph++) {
+            if (markup == Markup.ASCIIDOC) {
+                sb.append("== Section ").append(paragraph).append("\n\n");
+            } else {
+                sb.append("## Section ").append(paragraph).append("\n\n");
+            }
+            sb.append("Post ").append(i).append(" has *some* text with a link to http://jbake.org[JBake] in it. ");
+            sb.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore.\n\n");
+            sb.append("* First item\n* Second item\n* Third item\n\n");
+        }
+        if (markup == Markup.ASCIIDOC) {
+            sb.append("[source,java]\n----\npublic class Post").append(i).append(" {\n}\n----\n");
+        } else {
+            sb.append("```java\npublic class Post").append(i).append(" {\n}\n```\n");
+        }
+        return sb.toString();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(UTF_8));
+    }
+
+    public File getPost(int i, Markup markup) {
+        return new File(sourceDirectory, "content/blog/post" + i + "." + markup.getExtension());
+    }
+
+    public File getSourceDirectory() {
+        return sourceDirectory;
+    }
+
+    public File getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Deletes the site along with its output.
+     */
+    public void delete() {
+        try {
+            Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            // The site lives in the temp directory anyway
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.watcher;
+
+import com.blazebit.jbake.mojo.benchmark.SyntheticSite;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how fast {@link WatchDir#processEvents()} dispatches an event storm of modified files in a site.
+ * The storm is written before each invocation, so only the draining of the events is measured.
+ *
+ * @author Christian Beikov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WatchDirBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long STORM_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    @Param({ "100", "1000" })
+    private int pages;
+
+    @Param({ "20" })
+    private int tags;
+
+    // The number of files modified per storm, at most the number of pages
+    @Param({ "10", "100" })
+    private int files;
+
+    private SyntheticSite site;
+    private WatcherTimerService timerService;
+    private WatchDir watchDir;
+    private CountingListener listener;
+    private int storm;
+
+    @Setup
+    public void setup() throws IOException {
+        site = SyntheticSite.create(pages, tags, SyntheticSite.Markup.MARKDOWN);
+        timerService = new WatcherTimerService(50L);
+        listener = new CountingListener();
+        watchDir = new WatchDir(timerService, site.getSourceDirectory().toPath(), listener, true, true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        watchDir.close();
+        timerService.shutdown();
+        site.delete();
+    }
+
+    @Setup(Level.Invocation)
+    public void writeStorm() throws IOException {
+        listener.reset();
+        storm++;
+        for (int i = 0; i < Math.min(files, pages); i++) {
+            File post = site.getPost(i, SyntheticSite.Markup.MARKDOWN);
+            Files.write(post.toPath(), ("\nStorm " + storm + "\n").getBytes(UTF_8), StandardOpenOption.APPEND);
+        }
+    }
+
+    @Benchmark
+    public int processEvents() {
+        int expected = Math.min(files, pages);
+        long deadline = System.currentTimeMillis() + STORM_TIMEOUT;
+        // The events are delivered by the background thread of the watch service, so poll until all arrived
+        while (listener.modified.get() < expected && !listener.overflowed) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Only received " + listener.modified.get() + " of " + expected + " events");
+            }
+            watchDir.processEvents();
+            Thread.yield();
+        }
+        return listener.modified.get();
+    }
+
+    private static class CountingListener implements WatcherListener {
+
+        private final AtomicInteger modified = new AtomicInteger();
+        private volatile boolean overflowed;
+
+        void reset() {
+            modified.set(0);
+            overflowed = false;
+        }
+
+        @Override
+        public void refreshQueued() {
+            overflowed = true;
+        }
+
+        @Override
+        public void refresh() {
+        }
+
+        @Override
+        public void settled() {
+        }
+
+        @Override
+        public void created(Path path) {
+        }
+
+        @Override
+        public void deleted(Path path) {
+        }
+
+        @Override
+        public void modified(Path path) {
+            modified.incrementAndGet();
+        }
+    }
+}
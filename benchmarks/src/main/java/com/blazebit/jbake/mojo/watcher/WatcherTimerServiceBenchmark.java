@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.watcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of (re-)scheduling the settle notification and refreshes with {@link WatcherTimerService},
+ * which happens for every dispatched batch of events and every event during an overflow.
+ *
+ * @author Christian Beikov
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WatcherTimerServiceBenchmark {
+
+    // The quiet period
+    @Param({ "50" })
+    private long timeout;
+
+    private Path directory;
+    private WatcherTimerService timerService;
+    private WatchDir watchDir;
+    private WatcherListener listener;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("jbake-benchmark");
+        timerService = new WatcherTimerService(timeout);
+        listener = new NoopListener();
+        watchDir = new WatchDir(timerService, directory, listener, false, true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        watchDir.close();
+        timerService.shutdown();
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public void settle() {
+        timerService.settle(watchDir, listener);
+    }
+
+    @Benchmark
+    public void queue() {
+        timerService.queue(watchDir, listener);
+    }
+
+    @Benchmark
+    public boolean requeue() {
+        // Events during an overflow re-queue the refresh, queue a new one if it ran in the meantime
+        if (timerService.requeue(watchDir, listener)) {
+            return true;
+        }
+        timerService.queue(watchDir, listener);
+        return false;
+    }
+
+    private static class NoopListener implements WatcherListener {
+
+        @Override
+        public void refreshQueued() {
+        }
+
+        @Override
+        public void refresh() {
+        }
+
+        @Override
+        public void settled() {
+        }
+
+        @Override
+        public void created(Path path) {
+        }
+
+        @Override
+        public void deleted(Path path) {
+        }
+
+        @Override
+        public void modified(Path path) {
+        }
+    }
+}
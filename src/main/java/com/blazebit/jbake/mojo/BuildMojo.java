@@ -15,21 +15,38 @@
  */
 package com.blazebit.jbake.mojo;
 
+import com.blazebit.jbake.mojo.bake.BakeCancelledException;
+import com.blazebit.jbake.mojo.bake.BakeIndex;
+import com.blazebit.jbake.mojo.bake.BakeMetrics;
+import com.blazebit.jbake.mojo.bake.BuildCache;
+import com.blazebit.jbake.mojo.bake.ConfigurationSnapshot;
+import com.blazebit.jbake.mojo.bake.DependencyGraph;
+import com.blazebit.jbake.mojo.bake.DirectoryBuildCache;
+import com.blazebit.jbake.mojo.bake.DocumentCache;
+import com.blazebit.jbake.mojo.bake.EnginePool;
+import com.blazebit.jbake.mojo.bake.IncrementalOven;
+import com.blazebit.jbake.mojo.watcher.ChangeSet;
 import org.apache.commons.configuration.CompositeConfiguration;
 import org.apache.commons.configuration.MapConfiguration;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 import org.apache.maven.project.MavenProject;
-import org.jbake.app.Oven;
 import org.jbake.app.configuration.DefaultJBakeConfiguration;
 import org.jbake.app.configuration.JBakeConfiguration;
 import org.jbake.app.configuration.JBakeConfigurationFactory;
 
 import java.io.File;
-import java.util.Iterator;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -40,6 +57,11 @@ import java.util.Map;
 @Mojo(name = "build", requiresProject = true, requiresDependencyResolution = ResolutionScope.COMPILE_PLUS_RUNTIME)
 public class BuildMojo extends AbstractMojo {
 
+    private static final String INDEX_FILE_NAME = "index.txt";
+    private static final String DOCUMENT_CACHE_NAME = "documents";
+    private static final String DEPENDENCIES_FILE_NAME = "dependencies.txt";
+    private static final String CONTENT_STORE_NAME = "content-store";
+
     @Parameter(defaultValue = "${project}")
     protected MavenProject project;
 
@@ -63,6 +85,83 @@ public class BuildMojo extends AbstractMojo {
      */
     @Parameter(property = "jbake.clearCache", defaultValue = "false", required = true)
     protected boolean clearCache;
+
+    /**
+     * Whether the build should only bake sources that changed since the last build.
+     * The parsed content and a fingerprint index of all sources are kept in the cache directory for that purpose.
+     */
+    @Parameter(property = "jbake.incremental", defaultValue = "false", required = true)
+    protected boolean incremental;
+
+    /**
+     * Location of the directory for the parsed documents and the fingerprint index of incremental builds.
+     */
+    @Parameter(property = "jbake.cacheDirectory", defaultValue = "${project.build.directory}/jbake-cache",
+            required = true)
+    protected File cacheDirectory;
+    
+    /**
+     * Location of a build cache directory for rendered pages, which may be shared by builds of other working copies,
+     * branches or machines, e.g. on a network file system. Pages are restored from the cache instead of rendering them
+     * if the configuration, the templates, the document headers and the sources they depend on are the same.
+     * No build cache is used if unset.
+     */
+    @Parameter(property = "jbake.buildCacheDirectory")
+    protected File buildCacheDirectory;
+    
+    /**
+     * The maximum size of the build cache directory in megabytes. The least recently used pages are deleted after a build
+     * until the cache is smaller.
+     */
+    @Parameter(property = "jbake.buildCacheMaxSize", defaultValue = "1024")
+    protected long buildCacheMaxSize;
+    
+    /**
+     * The number of threads that parse content files. Rendering always happens on a single thread.
+     */
+    @Parameter(property = "jbake.threads", defaultValue = "1", required = true)
+    protected int threads;
+    
+    /**
+     * Whether documents should be streamed through the bake to keep the memory usage independent of the size of the site.
+     * Documents are kept in a content store on disk in the cache directory instead of memory, only a few documents per
+     * thread are parsed ahead of storing and documents are rendered one at a time.
+     */
+    @Parameter(property = "jbake.streaming", defaultValue = "false")
+    protected boolean streaming;
+    
+    /**
+     * Whether assets should be hard linked into the output directory instead of being copied.
+     * Falls back to copying if the directories are on different file systems.
+     */
+    @Parameter(property = "jbake.linkAssets", defaultValue = "false")
+    protected boolean linkAssets;
+    
+    /**
+     * Whether the allocations of a bake should be measured and a JSON report with the time spent per phase and per file,
+     * file counts and GC and allocation deltas of the last bake should be written to the metrics file and summarized in the log.
+     */
+    @Parameter(property = "jbake.metrics", defaultValue = "false")
+    protected boolean metrics;
+    
+    /**
+     * Location of the JSON report of the last bake.
+     */
+    @Parameter(property = "jbake.metricsFile", defaultValue = "${project.build.directory}/jbake-metrics.json",
+            required = true)
+    protected File metricsFile;
+    
+    /**
+     * The number of slowest pages that are listed in the build log and the report.
+     */
+    @Parameter(property = "jbake.slowestPages", defaultValue = "10")
+    protected int slowestPages;
+    
+    /**
+     * The maximum time in milliseconds a build may spend baking before it fails. A value of 0 disables the check.
+     */
+    @Parameter(property = "jbake.bakeTimeBudget", defaultValue = "0")
+    protected long bakeTimeBudget;
     
     /**
      * Properties that are passed to JBake which override the jbake.properties.
@@ -70,24 +169,230 @@ public class BuildMojo extends AbstractMojo {
     @Parameter
     protected Map<String, String> properties;
     
-    private Oven oven;
+    private IncrementalOven oven;
+    private BuildCache buildCache;
+    private ConfigurationSnapshot configurationSnapshot;
+    private final EnginePool enginePool = new EnginePool();
+    private BakeMetrics lastMetrics;
 
     @Override
-    public void execute() throws MojoExecutionException {
+    public void execute() throws MojoExecutionException, MojoFailureException {
         setup();
-        bake();
+        try {
+            if (incremental) {
+                bakeIncremental();
+            } else {
+                bake();
+            }
+        } finally {
+            destroy();
+        }
+        
+        // Nothing was baked if an incremental build found no changes
+        if (lastMetrics != null) {
+            if (metrics) {
+                logMetrics(lastMetrics);
+            }
+            if (bakeTimeBudget > 0 && lastMetrics.getTotalMillis() > bakeTimeBudget) {
+                throw new MojoFailureException("Baking took " + lastMetrics.getTotalMillis() + "ms which exceeds the budget of " + bakeTimeBudget + "ms");
+            }
+        }
+    }
+
+    /**
+     * Bakes only the sources that changed compared to the fingerprint index of the previous build.
+     * Changes of templates and included files are traced through the dependency graph of the previous build
+     * to the documents that have to be rendered again. Everything is baked again if the configuration changed
+     * or a template changed that nothing is known to depend on.
+     *
+     * @throws MojoExecutionException
+     */
+    protected void bakeIncremental() throws MojoExecutionException {
+        setup();
+        
+        File indexFile = new File(cacheDirectory, INDEX_FILE_NAME);
+        File dependenciesFile = new File(cacheDirectory, DEPENDENCIES_FILE_NAME);
+        JBakeConfiguration config = oven.getConfiguration();
+        DocumentCache documentCache = new DocumentCache(new File(cacheDirectory, DOCUMENT_CACHE_NAME));
+        BakeIndex previousIndex = BakeIndex.load(indexFile);
+        BakeIndex index = BakeIndex.create(config, previousIndex);
+        DependencyGraph dependencies = DependencyGraph.load(dependenciesFile, config);
+        ChangeSet dependencyChanges = dependencies.diff(config);
+        ChangeSet changes = null;
+        
+        // The index is only usable along with the cache that holds the parsed documents
+        boolean compatible = index.isCompatible(previousIndex)
+                || index.getConfigurationHash().equals(previousIndex.getConfigurationHash()) && dependencyChanges != null;
+        if (compatible && documentCache.exists()) {
+            changes = index.diff(previousIndex, config);
+            if (dependencyChanges != null) {
+                changes.addAll(dependencyChanges);
+            }
+            oven.setDependencies(dependencies);
+            // Documents with includes that couldn't be resolved might depend on any file, so they are baked every time
+            if (changes.isEmpty() && dependencies.getUnresolvedDependents().isEmpty()) {
+                getLog().info("Skipping bake, no sources changed");
+                return;
+            }
+            getLog().info("Baking " + changes.size() + " changed source(s)");
+        } else {
+            // The outputs of the previous build are overwritten and the ones that aren't generated again are deleted afterwards
+            getLog().info("Configuration or templates changed, baking all sources");
+            documentCache.clear();
+            oven.setDependencies(new DependencyGraph());
+        }
+        
+        oven.setDocumentCache(documentCache);
+        try {
+            long start = System.currentTimeMillis();
+            if (changes == null) {
+                oven.bake();
+            } else {
+                oven.restore(changes);
+            }
+            getLog().info("Baked " + oven.getRenderedCount() + " items in " + (System.currentTimeMillis() - start) + "ms");
+            logErrors(oven.getErrors());
+            report(oven.getMetrics());
+        } catch (BakeCancelledException ex) {
+            // The oven stays usable, the caller bakes the changes again
+            throw ex;
+        } catch (Throwable ex) {
+            destroy();
+            throw new MojoExecutionException("Failure when running: ", ex);
+        }
+        
+        try {
+            // After a full bake, outputs of the previous build that weren't generated again are stale even if items failed
+            if (changes == null || oven.getErrors().isEmpty()) {
+                index.updateOutputs(previousIndex, oven.getOutputs(), oven.getGeneratedOutputs(), changes, config);
+            }
+            if (oven.getErrors().isEmpty()) {
+                index.save(indexFile);
+                oven.getDependencies().save(dependenciesFile, config);
+            } else {
+                // Without an index, the next build will bake everything again to render the failed items
+                if (indexFile.exists() && !indexFile.delete()) {
+                    throw new IOException("Could not delete " + indexFile);
+                }
+                if (dependenciesFile.exists() && !dependenciesFile.delete()) {
+                    throw new IOException("Could not delete " + dependenciesFile);
+                }
+            }
+        } catch (IOException ex) {
+            throw new MojoExecutionException("Could not write the bake index", ex);
+        }
     }
     
     protected void bake() throws MojoExecutionException {
+        bake(null);
+    }
+
+    /**
+     * Bakes only the given changes or the whole site if no changes are given.
+     *
+     * @param changes The changed paths or <code>null</code>
+     * @throws MojoExecutionException
+     */
+    protected void bake(ChangeSet changes) throws MojoExecutionException {
+        setup();
+        
+        try {
+            long start = System.currentTimeMillis();
+            if (changes == null) {
+                oven.bake();
+            } else {
+                oven.bake(changes);
+            }
+            getLog().info("Baked " + oven.getRenderedCount() + " items in " + (System.currentTimeMillis() - start) + "ms");
+            logErrors(oven.getErrors());
+            report(oven.getMetrics());
+        } catch (BakeCancelledException ex) {
+            // The oven stays usable, the caller bakes the changes again
+            throw ex;
+        } catch (Throwable ex) {
+            destroy();
+            throw new MojoExecutionException("Failure when running: ", ex);
+        }
+    }
+
+    /**
+     * Copies or deletes the given changed assets without parsing or rendering anything.
+     *
+     * @param changes The changed asset paths
+     * @throws MojoExecutionException
+     */
+    protected void copyAssets(ChangeSet changes) throws MojoExecutionException {
         setup();
         
         try {
-            oven.bake();
+            long start = System.currentTimeMillis();
+            oven.copyAssets(changes);
+            getLog().info("Copied " + changes.size() + " changed asset(s) in " + (System.currentTimeMillis() - start) + "ms");
+            logErrors(oven.getErrors());
+            report(oven.getMetrics());
+        } catch (BakeCancelledException ex) {
+            // The oven stays usable, the caller bakes the changes again
+            throw ex;
         } catch (Throwable ex) {
             destroy();
             throw new MojoExecutionException("Failure when running: ", ex);
         }
     }
+
+    /**
+     * Writes the metrics of a bake to the metrics file if enabled.
+     *
+     * @param bakeMetrics The metrics of the bake
+     */
+    private void report(BakeMetrics bakeMetrics) {
+        lastMetrics = bakeMetrics;
+        if (metrics) {
+            try {
+                bakeMetrics.write(metricsFile, slowestPages);
+            } catch (IOException ex) {
+                getLog().warn("Could not write the metrics to " + metricsFile, ex);
+            }
+        }
+    }
+    
+    private void logMetrics(BakeMetrics bakeMetrics) {
+        getLog().info("Bake time " + bakeMetrics.getTotalMillis() + "ms: "
+                + "setup " + bakeMetrics.getPhaseMillis(BakeMetrics.Phase.SETUP) + "ms, "
+                + "crawl " + bakeMetrics.getPhaseMillis(BakeMetrics.Phase.CRAWL) + "ms, "
+                + "parse " + bakeMetrics.getPhaseMillis(BakeMetrics.Phase.PARSE) + "ms, "
+                + "content store " + bakeMetrics.getPhaseMillis(BakeMetrics.Phase.STORE) + "ms, "
+                + "render " + bakeMetrics.getPhaseMillis(BakeMetrics.Phase.RENDER) + "ms, "
+                + "assets " + bakeMetrics.getPhaseMillis(BakeMetrics.Phase.ASSETS) + "ms");
+        getLog().info("Files: " + bakeMetrics.getCount(BakeMetrics.Count.PARSED_FILES) + " parsed, "
+                + bakeMetrics.getCount(BakeMetrics.Count.CACHED_FILES) + " cached, "
+                + bakeMetrics.getCount(BakeMetrics.Count.RENDERED_PAGES) + " rendered, "
+                + bakeMetrics.getCount(BakeMetrics.Count.RESTORED_PAGES) + " restored from build cache, "
+                + bakeMetrics.getCount(BakeMetrics.Count.WRITTEN_OUTPUTS) + " outputs written, "
+                + bakeMetrics.getCount(BakeMetrics.Count.UNCHANGED_OUTPUTS) + " outputs unchanged, "
+                + bakeMetrics.getCount(BakeMetrics.Count.COPIED_ASSETS) + " assets copied, "
+                + bakeMetrics.getCount(BakeMetrics.Count.UNCHANGED_ASSETS) + " assets unchanged, "
+                + bakeMetrics.getCount(BakeMetrics.Count.DELETED_OUTPUTS) + " outputs deleted");
+        String allocated = bakeMetrics.getAllocatedBytes() < 0 ? "" : ", " + (bakeMetrics.getAllocatedBytes() / (1024 * 1024)) + "MB allocated";
+        getLog().info("GC: " + bakeMetrics.getGcCount() + " collection(s) in " + bakeMetrics.getGcMillis() + "ms" + allocated);
+        
+        List<BakeMetrics.FileTiming> slowest = bakeMetrics.getSlowestFiles(slowestPages);
+        if (!slowest.isEmpty()) {
+            getLog().info("Slowest pages:");
+            for (BakeMetrics.FileTiming timing : slowest) {
+                getLog().info("  " + timing.getName() + " " + timing.getTotalMillis() + "ms (parse " + timing.getParseMillis() + "ms, render " + timing.getRenderMillis() + "ms)");
+            }
+        }
+        getLog().info("Metrics written to " + metricsFile);
+    }
+
+    private void logErrors(List<Throwable> errors) {
+        if (!errors.isEmpty()) {
+            getLog().error("Failed to bake " + errors.size() + " item(s)!");
+            for (Throwable error : errors) {
+                getLog().debug(error);
+            }
+        }
+    }
     
     protected void setup() throws MojoExecutionException {
         if (oven != null) {
@@ -95,43 +400,160 @@ public class BuildMojo extends AbstractMojo {
         }
         
         try {
-            this.oven = new Oven(createConfiguration());
+            JBakeConfiguration config = createConfiguration();
+            if (streaming) {
+                // Documents of a previous build might not match the outputs anymore, so every build starts with an empty store
+                deleteDirectory(new File(config.getDatabasePath()));
+            }
+            this.oven = new IncrementalOven(enginePool.getConfiguration(config), Math.max(1, threads), enginePool);
+            this.oven.setLinkAssets(linkAssets);
+            this.oven.setStreaming(streaming);
+            this.oven.setMeasureAllocations(metrics);
+            this.buildCache = createBuildCache();
+            this.oven.setBuildCache(buildCache);
         } catch (Throwable ex) {
             destroy();
             throw new MojoExecutionException("Failure when running: ", ex);
         }
     }
     
+    protected IncrementalOven getOven() {
+        return oven;
+    }
+    
+    /**
+     * Returns the pool of template engines that is shared by all ovens of this mojo, also across {@link #rebuild()}.
+     *
+     * @return The engine pool
+     */
+    protected EnginePool getEnginePool() {
+        return enginePool;
+    }
+    
     protected void rebuild() throws MojoExecutionException {
-        oven = null;
+        destroy();
         setup();
     }
+
+    /**
+     * Loads the configuration again and applies it to the current oven if only values changed that are read while
+     * rendering. Otherwise the oven is re-created, which initializes the template engines and Asciidoctor again.
+     *
+     * @return true if the oven was re-created and the whole site has to be baked
+     * @throws MojoExecutionException
+     */
+    protected boolean reconfigure() throws MojoExecutionException {
+        setup();
+        
+        try {
+            ConfigurationSnapshot previousSnapshot = configurationSnapshot;
+            JBakeConfiguration config = createConfiguration();
+            if (configurationSnapshot == previousSnapshot) {
+                getLog().info("Configuration files saved without changes");
+                return false;
+            }
+            if (oven.reconfigure(config)) {
+                getLog().info("Configuration changed, rendering all pages again");
+                return false;
+            }
+        } catch (Throwable ex) {
+            destroy();
+            throw new MojoExecutionException("Failure when running: ", ex);
+        }
+        
+        getLog().info("Configuration changed, re-creating the oven");
+        rebuild();
+        return true;
+    }
     
     protected void destroy() {
-        oven = null;
+        if (oven != null) {
+            try {
+                oven.close();
+            } catch (RuntimeException ex) {
+                getLog().warn("Error on closing the oven", ex);
+            }
+            oven = null;
+        }
+        if (buildCache != null) {
+            try {
+                buildCache.close();
+            } catch (IOException ex) {
+                getLog().warn("Error on closing the build cache", ex);
+            }
+            buildCache = null;
+        }
+    }
+
+    /**
+     * Creates the cache for rendered pages. Subclasses may return other implementations, e.g. one backed by a remote store.
+     *
+     * @return The build cache or <code>null</code> if no build cache should be used
+     */
+    protected BuildCache createBuildCache() {
+        if (buildCacheDirectory == null) {
+            return null;
+        }
+        return new DirectoryBuildCache(buildCacheDirectory, buildCacheMaxSize * 1024L * 1024L);
     }
 
     protected JBakeConfiguration createConfiguration() throws Exception {
-        final CompositeConfiguration config = new CompositeConfiguration();
         final JBakeConfigurationFactory jBakeConfigurationFactory = new JBakeConfigurationFactory();
+        ConfigurationSnapshot snapshot = getConfigurationSnapshot(jBakeConfigurationFactory);
+        DefaultJBakeConfiguration jbakeConfig = jBakeConfigurationFactory.createDefaultJbakeConfiguration(inputDirectory, outputDirectory, snapshot.toConfiguration(), clearCache);
+        if (streaming) {
+            // The in-memory store would hold every document of the site
+            jbakeConfig.setDatabaseStore("plocal");
+            jbakeConfig.setDatabasePath(new File(cacheDirectory, CONTENT_STORE_NAME).getAbsolutePath());
+        }
+        return jbakeConfig;
+    }
 
+    /**
+     * Returns the flattened configuration of the properties, the project properties and the jbake.properties.
+     * The layered configuration is only assembled again if the properties or the contents of the configuration files changed.
+     */
+    private ConfigurationSnapshot getConfigurationSnapshot(JBakeConfigurationFactory jBakeConfigurationFactory) throws Exception {
+        String fingerprint = ConfigurationSnapshot.fingerprint(properties, project.getProperties(), inputDirectory);
+        if (configurationSnapshot != null && configurationSnapshot.getFingerprint().equals(fingerprint)) {
+            return configurationSnapshot;
+        }
+
+        final CompositeConfiguration config = new CompositeConfiguration();
         if (properties != null) {
             config.addConfiguration(new MapConfiguration(properties));
         }
         config.addConfiguration(new MapConfiguration(project.getProperties()));
         config.addConfiguration(((DefaultJBakeConfiguration) jBakeConfigurationFactory.getConfigUtil().loadConfig(inputDirectory)).getCompositeConfiguration());
+        configurationSnapshot = ConfigurationSnapshot.create(config, fingerprint);
         
         if (getLog().isDebugEnabled()) {
             getLog().debug("Configuration:");
 
-            Iterator<String> iter = config.getKeys();
-            while (iter.hasNext()) {
-                String key = iter.next();
-                getLog().debug(key + ": " + config.getString(key));
+            for (Map.Entry<String, Object> entry : configurationSnapshot.getValues().entrySet()) {
+                getLog().debug(entry.getKey() + ": " + config.getString(entry.getKey()));
             }
         }
+        return configurationSnapshot;
+    }
+
+    private static void deleteDirectory(File directory) throws IOException {
+        if (!directory.exists()) {
+            return;
+        }
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
 
-        return jBakeConfigurationFactory.createDefaultJbakeConfiguration(inputDirectory, outputDirectory, config, clearCache);
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
     }
 
 }
@@ -15,18 +15,30 @@
  */
 package com.blazebit.jbake.mojo;
 
+import com.blazebit.jbake.mojo.server.LiveReloadHandler;
+import com.blazebit.jbake.mojo.server.OutputGenerations;
+import com.blazebit.jbake.mojo.server.StaticFileHandler;
+import com.blazebit.jbake.mojo.server.SwitchableResourceHandler;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.handler.ContextHandler;
+import org.eclipse.jetty.server.handler.ContextHandlerCollection;
 import org.eclipse.jetty.server.handler.HandlerCollection;
-import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.server.nio.SelectChannelConnector;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 /**
- * Builds and serves a JBake site locally.
+ * Builds and serves a JBake site or several sites under their context paths locally.
  *
  * @author Christian Beikov
  */
@@ -45,6 +57,45 @@ public class ServeMojo extends WatchMojo {
     @Parameter(property = "jbake.port", defaultValue = "8820")
     private Integer port;
 
+    /**
+     * Whether served pages should reload or swap stylesheets automatically after a bake.
+     */
+    @Parameter(property = "jbake.liveReload", defaultValue = "true")
+    private boolean liveReload;
+
+    /**
+     * Whether text files should be served gzip compressed to clients that accept it. Compressed variants are kept in
+     * the cache directory and existing <code>.br</code> files next to the site files are served to Brotli clients.
+     */
+    @Parameter(property = "jbake.compression", defaultValue = "false")
+    private boolean compression;
+
+    /**
+     * The maximum size in bytes of served files and their compressed variants to keep in memory, 0 disables caching.
+     */
+    @Parameter(property = "jbake.responseCacheSize", defaultValue = "0")
+    private long responseCacheSize;
+
+    /**
+     * The minimum size in bytes of files that are streamed from disk with support for range requests
+     * instead of being buffered in memory, 0 disables streaming. HTML pages are never streamed.
+     */
+    @Parameter(property = "jbake.streamedFileThreshold", defaultValue = "1048576")
+    private long streamedFileThreshold;
+
+    /**
+     * Whether the baked site should be published atomically. The output directory is then only used for staging and
+     * the site is served from a copy in the cache directory that is switched in one step after every bake, so clients
+     * never see a partially written site. Unchanged files are hard linked between the copies where possible.
+     */
+    @Parameter(property = "jbake.atomicPublish", defaultValue = "false")
+    private boolean atomicPublish;
+    
+    private SwitchableResourceHandler resourceHandler;
+    private LiveReloadHandler liveReloadHandler;
+    private StaticFileHandler staticFileHandler;
+    private OutputGenerations generations;
+
     @Override
     public void execute() throws MojoExecutionException {
         final Server server = new Server();
@@ -53,15 +104,24 @@ public class ServeMojo extends WatchMojo {
         connector.setPort(port);
         server.setConnectors(new Connector[]{ connector });
         
-        ResourceHandler externalResourceHandler = new ResourceHandler();
-        externalResourceHandler.setResourceBase(outputDirectory.getPath());
-        externalResourceHandler.setWelcomeFiles(new String[] { "index.html" });
+        Handler handler;
+        if (sites == null || sites.isEmpty()) {
+            handler = createHandler();
+        } else {
+            ContextHandlerCollection contexts = new ContextHandlerCollection();
+            for (WatchMojo siteMojo : getSiteMojos()) {
+                Site site = siteMojo.getSite();
+                ContextHandler context = new ContextHandler(site.getContextPath().isEmpty() ? "/" : site.getContextPath());
+                context.setHandler(((ServeMojo) siteMojo).createHandler());
+                contexts.addHandler(context);
+                getLog().info("Serving site " + site.getName() + " at " + site.getContextPath() + "/");
+            }
+            handler = contexts;
+        }
         
         HandlerCollection handlers = new HandlerCollection();
-        handlers.setHandlers(new Handler[] { externalResourceHandler });
+        handlers.setHandlers(new Handler[] { handler });
         server.setHandler(handlers);
-
-        outputDirectory.mkdirs();
         
         try {
             server.start();
@@ -79,4 +139,130 @@ public class ServeMojo extends WatchMojo {
             }
         }
     }
+
+    /**
+     * Creates the handlers that serve the output directory of this mojo.
+     *
+     * @return The outermost handler
+     * @throws MojoExecutionException
+     */
+    private Handler createHandler() throws MojoExecutionException {
+        outputDirectory.mkdirs();
+        File servedDirectory = outputDirectory;
+        if (atomicPublish) {
+            generations = new OutputGenerations(outputDirectory, new File(cacheDirectory, "generations"));
+            try {
+                // Serve the output of the last run until the initial bake is done
+                servedDirectory = generations.publish(null);
+            } catch (IOException ex) {
+                throw new MojoExecutionException("Could not publish the output directory!", ex);
+            }
+        }
+        
+        resourceHandler = new SwitchableResourceHandler();
+        resourceHandler.setResourceBase(servedDirectory.getPath());
+        resourceHandler.setWelcomeFiles(new String[] { "index.html" });
+        
+        Handler handler = resourceHandler;
+        boolean buffered = compression || responseCacheSize > 0;
+        if (buffered || streamedFileThreshold > 0) {
+            File compressedDirectory = compression ? new File(cacheDirectory, "compressed") : null;
+            staticFileHandler = new StaticFileHandler(servedDirectory, resourceHandler.getWelcomeFiles(), compressedDirectory, responseCacheSize, streamedFileThreshold);
+            staticFileHandler.setHandler(handler);
+            handler = staticFileHandler;
+        }
+        if (liveReload) {
+            liveReloadHandler = new LiveReloadHandler(servedDirectory, resourceHandler.getWelcomeFiles(), getSite() == null ? "" : getSite().getContextPath());
+            if (buffered) {
+                staticFileHandler.setPageFilter(liveReloadHandler);
+                liveReloadHandler.setServePages(false);
+            }
+            liveReloadHandler.setHandler(handler);
+            handler = liveReloadHandler;
+        }
+        
+        return handler;
+    }
+
+    @Override
+    protected WatchMojo createSiteMojo() {
+        return new ServeMojo();
+    }
+
+    @Override
+    protected void configureSite(WatchMojo siteMojo, Site site) {
+        super.configureSite(siteMojo, site);
+        ServeMojo serveMojo = (ServeMojo) siteMojo;
+        serveMojo.listenAddress = listenAddress;
+        serveMojo.port = port;
+        serveMojo.liveReload = liveReload;
+        serveMojo.compression = compression;
+        serveMojo.responseCacheSize = responseCacheSize;
+        serveMojo.streamedFileThreshold = streamedFileThreshold;
+        serveMojo.atomicPublish = atomicPublish;
+    }
+
+    @Override
+    protected void baked(Set<File> changedOutputs) {
+        if (generations != null && !publish(changedOutputs)) {
+            return;
+        }
+        if (staticFileHandler != null) {
+            staticFileHandler.invalidate(getServedFiles(changedOutputs));
+        }
+        if (liveReloadHandler == null) {
+            return;
+        }
+        
+        if (changedOutputs == null) {
+            liveReloadHandler.reload(null);
+        } else {
+            Path base = outputDirectory.toPath().toAbsolutePath().normalize();
+            Set<String> paths = new LinkedHashSet<String>();
+            for (File output : changedOutputs) {
+                Path path = output.toPath().toAbsolutePath().normalize();
+                if (path.startsWith(base)) {
+                    paths.add("/" + base.relativize(path).toString().replace(File.separatorChar, '/'));
+                }
+            }
+            liveReloadHandler.reload(paths);
+        }
+    }
+
+    private boolean publish(Set<File> changedOutputs) {
+        File generation;
+        try {
+            generation = generations.publish(changedOutputs);
+        } catch (IOException ex) {
+            getLog().warn("Could not publish the baked site, still serving the previous one", ex);
+            return false;
+        }
+        
+        // Switch the innermost handler first, every handler serves a complete site either way
+        try {
+            resourceHandler.setBaseDirectory(generation);
+        } catch (IOException ex) {
+            getLog().warn("Could not switch to the published site", ex);
+            return false;
+        }
+        if (staticFileHandler != null) {
+            staticFileHandler.setBaseDirectory(generation);
+        }
+        if (liveReloadHandler != null) {
+            liveReloadHandler.setBaseDirectory(generation);
+        }
+        generations.deleteRetired();
+        return true;
+    }
+
+    private Set<File> getServedFiles(Set<File> changedOutputs) {
+        if (generations == null || changedOutputs == null) {
+            return changedOutputs;
+        }
+        Set<File> servedFiles = new HashSet<File>(changedOutputs.size());
+        for (File output : changedOutputs) {
+            servedFiles.add(generations.resolve(output));
+        }
+        return servedFiles;
+    }
 }
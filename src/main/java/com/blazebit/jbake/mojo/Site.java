@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * A site that is baked, watched and served along with other sites in the same JVM.
+ *
+ * @author Christian Beikov
+ */
+public class Site {
+
+    /**
+     * The name of the site, which prefixes its log messages and is the default context path.
+     */
+    private String name;
+
+    /**
+     * Location of the input directory.
+     */
+    private File inputDirectory;
+
+    /**
+     * Location of the output directory.
+     */
+    private File outputDirectory;
+
+    /**
+     * Location of the cache directory, by default a directory with the name of the site in the cache directory of the mojo.
+     */
+    private File cacheDirectory;
+
+    /**
+     * The context path under which the site is served, by default the name of the site.
+     */
+    private String contextPath;
+
+    /**
+     * Properties that are passed to JBake which override the properties of the mojo and the jbake.properties.
+     */
+    private Map<String, String> properties;
+
+    public String getName() {
+        return name;
+    }
+
+    public File getInputDirectory() {
+        return inputDirectory;
+    }
+
+    public File getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * Returns the context path with a leading and without a trailing slash, or an empty string for the root context.
+     *
+     * @return The normalized context path
+     */
+    public String getContextPath() {
+        String path = contextPath == null ? name : contextPath;
+        if (!path.startsWith("/")) {
+            path = "/" + path;
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+}
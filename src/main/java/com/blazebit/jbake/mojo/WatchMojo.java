@@ -15,15 +15,33 @@
  */
 package com.blazebit.jbake.mojo;
 
-import com.blazebit.jbake.mojo.watcher.WatcherListener;
+import com.blazebit.jbake.mojo.bake.BakeCancelledException;
+import com.blazebit.jbake.mojo.bake.ChangeClassifier;
+import com.blazebit.jbake.mojo.bake.DependencyGraph;
+import com.blazebit.jbake.mojo.watcher.BatchingWatcherListener;
+import com.blazebit.jbake.mojo.watcher.ChangeSet;
+import com.blazebit.jbake.mojo.watcher.WatchFilter;
+import com.blazebit.jbake.mojo.watcher.WatcherBackend;
+import com.blazebit.jbake.mojo.watcher.WatcherBatchListener;
 import com.blazebit.jbake.mojo.watcher.WatcherService;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.jbake.app.configuration.DefaultJBakeConfiguration;
+import org.jbake.app.configuration.JBakeConfiguration;
 
+import java.io.File;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Builds a JBake site and watches for changes to rebuild.
@@ -33,33 +51,169 @@ import java.util.Set;
 @Mojo(name = "watch", requiresDirectInvocation = true, requiresProject = false)
 public class WatchMojo extends BuildMojo {
 
-    private static final long DEFAULT_SLEEP = 1000L;
+    /**
+     * The time in milliseconds without further changes after which a bake is started.
+     */
+    @Parameter(property = "jbake.quietPeriod", defaultValue = "50", required = true)
+    protected long quietPeriod;
+
+    /**
+     * Whether the template and markup engines should be initialized in the background while directories are registered.
+     */
+    @Parameter(property = "jbake.warmUp", defaultValue = "true")
+    protected boolean warmUp;
+
+    /**
+     * Glob patterns of the paths in the source folder that are watched, everything is watched if empty.
+     * Patterns without a slash match file and directory names at any depth, other patterns match the path relative to the source folder.
+     */
+    @Parameter(property = "jbake.watchIncludes")
+    protected String[] watchIncludes;
+
+    /**
+     * Glob patterns of the paths in the source folder that are not watched, e.g. <code>node_modules</code>.
+     * Excluded directories are not registered with the file system at all, which matters for big trees.
+     */
+    @Parameter(property = "jbake.watchExcludes")
+    protected String[] watchExcludes;
+
+    /**
+     * How changes are found, <code>NATIVE</code> uses the events of the file system, <code>POLLING</code> scans the source folder periodically
+     * and <code>AUTO</code> polls on network file systems, container bind mounts and platforms without native events.
+     */
+    @Parameter(property = "jbake.watcher", defaultValue = "AUTO")
+    protected WatcherBackend watcher;
+
+    /**
+     * The minimum time in milliseconds between two scans of the polling watcher, which grows while nothing changes.
+     */
+    @Parameter(property = "jbake.pollInterval", defaultValue = "500")
+    protected long pollInterval;
+
+    /**
+     * Sites that are baked and watched in this JVM instead of the input directory. Every site is baked on its own thread
+     * with its own cache directory, while the watcher and the markup engines like Asciidoctor are shared.
+     */
+    @Parameter
+    protected List<Site> sites;
     
+    // Guarded by changes
     private Status status = Status.OK;
-    private final WatcherService watcherService = new WatcherService();
-    private final Set<String> configFiles = new HashSet<String>(Arrays.asList(
-        "custom.properties",
-        "jbake.properties",
-        "default.properties"
-    ));
+    private boolean settled;
+    private boolean baking;
+    private final ChangeSet changes = new ChangeSet();
+    // Cancels the running bake of the oven when newer changes settled
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    // Outputs that cancelled bakes already wrote, null if a cancelled bake might have written all
+    private Set<File> cancelledOutputs = new LinkedHashSet<File>();
+    private volatile ChangeClassifier classifier;
+    private volatile DependencyGraph dependencies;
+    private Site site;
+    private List<WatchMojo> siteMojos;
     
+    // Ordered by the amount of work, so merging two states takes the greater one
     private static enum Status {
         OK,
+        ASSETS_CHANGED,
         CHANGED,
-        CONFIG_CHANGED;
+        CONFIG_CHANGED,
+        REFRESH;
     }
     
-    private void onChange(Path path) {
-        if (path == null || configFiles.contains(path.toString())) {
-            status = Status.CONFIG_CHANGED;
-        } else {
-            status = Status.CHANGED;
+    /**
+     * Returns whether a document might include the given file, which is also the case for documents with includes that couldn't be resolved.
+     */
+    private boolean isIncluded(Path path) {
+        DependencyGraph graph = dependencies;
+        return graph.hasDependents(path) || !graph.getUnresolvedDependents().isEmpty();
+    }
+
+    private void onChange(ChangeSet changedPaths) {
+        synchronized (changes) {
+            if (changedPaths == null) {
+                // Events were lost, so anything might have changed
+                status = Status.REFRESH;
+                return;
+            }
+            
+            for (Map.Entry<Path, ChangeSet.Kind> entry : changedPaths.getChanges().entrySet()) {
+                Path path = entry.getKey();
+                switch (classifier.classify(path)) {
+                    case CONFIG:
+                        if (status != Status.REFRESH) {
+                            status = Status.CONFIG_CHANGED;
+                        }
+                        break;
+                    case ASSET:
+                        changes.add(path, entry.getValue());
+                        // Assets that documents include require parsing and rendering the documents again
+                        Status assetStatus = isIncluded(path) ? Status.CHANGED : Status.ASSETS_CHANGED;
+                        if (status.compareTo(assetStatus) < 0) {
+                            status = assetStatus;
+                        }
+                        break;
+                    case CONTENT:
+                    case TEMPLATE:
+                        changes.add(path, entry.getValue());
+                        if (status == Status.OK || status == Status.ASSETS_CHANGED) {
+                            status = Status.CHANGED;
+                        }
+                        break;
+                    default:
+                        // Files like the pom.xml don't influence the site unless documents include them
+                        if (isIncluded(path)) {
+                            changes.add(path, entry.getValue());
+                            if (status == Status.OK || status == Status.ASSETS_CHANGED) {
+                                status = Status.CHANGED;
+                            }
+                        }
+                        break;
+                }
+            }
+        }
+    }
+    
+    private void onSettled() {
+        synchronized (changes) {
+            if (status != Status.OK) {
+                settled = true;
+                // The running bake is stale, it is restarted along with the newer changes. Assets are just copied afterwards
+                if (baking && status != Status.ASSETS_CHANGED) {
+                    cancelled.set(true);
+                }
+                changes.notifyAll();
+            }
         }
     }
     
+    /**
+     * Called after the initial bake and after every bake that was triggered by changes.
+     *
+     * @param changedOutputs The output files that were written or deleted or <code>null</code> if the whole site was baked
+     */
+    protected void baked(Set<File> changedOutputs) {
+        // No-op by default
+    }
+    
+    @Override
+    protected void setup() throws MojoExecutionException {
+        super.setup();
+        getOven().setCancellation(cancelled);
+    }
+    
     @Override
     public void execute() throws MojoExecutionException {
-        setup();
+        final List<WatchMojo> siteMojos = getSiteMojos();
+        for (WatchMojo siteMojo : siteMojos) {
+            siteMojo.setup();
+            if (warmUp) {
+                siteMojo.getEnginePool().warmUp(siteMojo.getOven().getConfiguration());
+            }
+            siteMojo.classifier = new ChangeClassifier(siteMojo.getOven().getConfiguration());
+            siteMojo.dependencies = siteMojo.getOven().getDependencies();
+        }
+        // The backend is resolved per source folder
+        final WatcherService watcherService = new WatcherService(quietPeriod, watcher, pollInterval);
         
         // Shutdown hook just to be safe
         Runtime.getRuntime().addShutdownHook(new Thread() {
@@ -69,65 +223,292 @@ public class WatchMojo extends BuildMojo {
             }
         });
         
-        watcherService.addListener(inputDirectory.toPath(), new WatcherListener() {
+        for (WatchMojo siteMojo : siteMojos) {
+            siteMojo.register(watcherService);
+        }
+        
+        try {
+            if (siteMojos.size() == 1) {
+                siteMojos.get(0).watch(watcherService);
+            } else {
+                watchConcurrently(siteMojos, watcherService);
+            }
+        } finally {
+            getLog().info("Shutting down...");
+            watcherService.shutdown();
+        }
+    }
+
+    /**
+     * Returns the mojos that bake the configured sites, or this mojo if no sites are configured.
+     * A mojo of a site is an instance of the same class with the configuration of this mojo and the directories of the site.
+     *
+     * @return The mojos of the sites
+     * @throws MojoExecutionException
+     */
+    protected List<WatchMojo> getSiteMojos() throws MojoExecutionException {
+        if (siteMojos != null) {
+            return siteMojos;
+        }
+        if (sites == null || sites.isEmpty()) {
+            siteMojos = Collections.singletonList(this);
+            return siteMojos;
+        }
+        
+        List<WatchMojo> mojos = new ArrayList<WatchMojo>(sites.size());
+        Set<String> names = new HashSet<String>();
+        Set<String> contextPaths = new HashSet<String>();
+        for (Site site : sites) {
+            if (site.getName() == null || site.getInputDirectory() == null || site.getOutputDirectory() == null) {
+                throw new MojoExecutionException("Every site needs a name, an input directory and an output directory!");
+            }
+            if (!names.add(site.getName())) {
+                throw new MojoExecutionException("The site name " + site.getName() + " is used more than once!");
+            }
+            if (!contextPaths.add(site.getContextPath())) {
+                throw new MojoExecutionException("The context path " + site.getContextPath() + " of site " + site.getName() + " is used more than once!");
+            }
             
+            WatchMojo mojo = createSiteMojo();
+            mojo.setLog(new SiteLog(site.getName(), getLog()));
+            mojo.site = site;
+            configureSite(mojo, site);
+            mojos.add(mojo);
+        }
+        siteMojos = mojos;
+        return siteMojos;
+    }
+
+    /**
+     * Creates an unconfigured mojo for a site. Subclasses return an instance of their own class.
+     *
+     * @return The mojo of a site
+     */
+    protected WatchMojo createSiteMojo() {
+        return new WatchMojo();
+    }
+
+    /**
+     * Copies the configuration of this mojo to the mojo of the given site. Subclasses copy their own parameters.
+     *
+     * @param siteMojo The mojo of the site
+     * @param site The site
+     */
+    protected void configureSite(WatchMojo siteMojo, Site site) {
+        siteMojo.project = project;
+        siteMojo.inputDirectory = site.getInputDirectory();
+        siteMojo.outputDirectory = site.getOutputDirectory();
+        siteMojo.cacheDirectory = site.getCacheDirectory() == null ? new File(cacheDirectory, site.getName()) : site.getCacheDirectory();
+        siteMojo.metricsFile = new File(metricsFile.getParentFile(), site.getName() + "-" + metricsFile.getName());
+        siteMojo.clearCache = clearCache;
+        siteMojo.incremental = incremental;
+        siteMojo.threads = threads;
+        siteMojo.linkAssets = linkAssets;
+        siteMojo.streaming = streaming;
+        siteMojo.buildCacheDirectory = buildCacheDirectory;
+        siteMojo.buildCacheMaxSize = buildCacheMaxSize;
+        siteMojo.metrics = metrics;
+        siteMojo.slowestPages = slowestPages;
+        siteMojo.bakeTimeBudget = bakeTimeBudget;
+        Map<String, String> siteProperties = new HashMap<String, String>();
+        if (properties != null) {
+            siteProperties.putAll(properties);
+        }
+        if (site.getProperties() != null) {
+            siteProperties.putAll(site.getProperties());
+        }
+        siteMojo.properties = siteProperties;
+        siteMojo.quietPeriod = quietPeriod;
+        siteMojo.warmUp = warmUp;
+        siteMojo.watchIncludes = watchIncludes;
+        siteMojo.watchExcludes = watchExcludes;
+        siteMojo.watcher = watcher;
+        siteMojo.pollInterval = pollInterval;
+    }
+
+    /**
+     * Returns the site of this mojo.
+     *
+     * @return The site or <code>null</code> if this mojo bakes its own input directory
+     */
+    protected Site getSite() {
+        return site;
+    }
+
+    @Override
+    protected JBakeConfiguration createConfiguration() throws Exception {
+        JBakeConfiguration config = super.createConfiguration();
+        if (site != null && config instanceof DefaultJBakeConfiguration) {
+            // Content stores of the same name would share their data between the sites
+            DefaultJBakeConfiguration defaultConfig = (DefaultJBakeConfiguration) config;
+            defaultConfig.setDatabasePath(defaultConfig.getDatabasePath() + "-" + site.getName());
+        }
+        return config;
+    }
+
+    private void register(WatcherService watcherService) {
+        int watchCount = watcherService.getWatchCount();
+        int excludedCount = watcherService.getExcludedCount();
+        long registrationStart = System.nanoTime();
+        watcherService.addListener(inputDirectory.toPath(), new BatchingWatcherListener(new WatcherBatchListener() {
+
             @Override
-            public void refreshQueued() {
-                // We don't really care about the queuing event
+            public void changed(ChangeSet changedPaths) {
+                onChange(changedPaths);
+                onSettled();
             }
 
             @Override
             public void refresh() {
                 onChange(null);
+                onSettled();
             }
+        }), new WatchFilter(watchIncludes, watchExcludes));
+        if (watcher.resolve(inputDirectory.toPath()) == WatcherBackend.POLLING) {
+            getLog().info("Polling " + (watcherService.getWatchCount() - watchCount) + " director(ies), scanned in "
+                    + (System.nanoTime() - registrationStart) / 1000000L + "ms, "
+                    + (watcherService.getExcludedCount() - excludedCount) + " excluded director(ies)");
+        } else {
+            getLog().info("Registered " + (watcherService.getWatchCount() - watchCount) + " watch(es) in "
+                    + (System.nanoTime() - registrationStart) / 1000000L + "ms, "
+                    + (watcherService.getExcludedCount() - excludedCount) + " excluded director(ies)");
+        }
+    }
 
-            @Override
-            public void created(Path path) {
-                onChange(path);
+    /**
+     * Bakes and watches every site on its own thread, as the content store of an oven is bound to the thread that uses it.
+     * Fails with the first error of a site after stopping the other sites.
+     */
+    private void watchConcurrently(List<WatchMojo> siteMojos, final WatcherService watcherService) throws MojoExecutionException {
+        final List<Thread> threads = new ArrayList<Thread>(siteMojos.size());
+        final AtomicReference<MojoExecutionException> error = new AtomicReference<MojoExecutionException>();
+        final Thread mainThread = Thread.currentThread();
+        for (final WatchMojo siteMojo : siteMojos) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        siteMojo.watch(watcherService);
+                    } catch (MojoExecutionException ex) {
+                        if (error.compareAndSet(null, ex)) {
+                            mainThread.interrupt();
+                        }
+                    }
+                }
+            }, "WatchMojo-" + siteMojo.site.getName());
+            threads.add(thread);
+            thread.start();
+        }
+        
+        try {
+            for (Thread thread : threads) {
+                thread.join();
             }
-
-            @Override
-            public void deleted(Path path) {
-                onChange(path);
+        } catch (InterruptedException ex) {
+            // A site failed, so the other sites are stopped as well
+            for (Thread thread : threads) {
+                thread.interrupt();
             }
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
 
-            @Override
-            public void modified(Path path) {
-                onChange(path);
-            }
-        });
-        
+    /**
+     * Bakes the site and then bakes again whenever changes settled until the thread is interrupted.
+     */
+    private void watch(WatcherService watcherService) throws MojoExecutionException {
         // Initial baking
         bake();
+        baked(null);
         
         getLog().info(
                 "Watching for changes in: " + inputDirectory.getPath());
         getLog().info("Stop with Ctrl + C");
 
         try {
+            watcherService.init();
+            // Whether the whole site has to be baked because a full bake was cancelled
+            boolean bakeAll = false;
             while (true) {
+                Status currentStatus;
+                ChangeSet changedPaths = new ChangeSet();
                 try {
-                    Thread.sleep(DEFAULT_SLEEP);
-                    watcherService.processEvents();
-                    if (status != Status.OK) {
-                        getLog().info("Refreshing");
-                        if (status == Status.CONFIG_CHANGED) {
-                            rebuild();
+                    synchronized (changes) {
+                        // Sleep until the watcher threads report changes that settled
+                        while (!settled) {
+                            changes.wait();
                         }
-                        
-                        bake();
+                        settled = false;
+                        currentStatus = status;
                         status = Status.OK;
+                        changedPaths.addAll(changes);
+                        changes.clear();
+                        baking = true;
+                        cancelled.set(false);
                     }
                 } catch (InterruptedException e) {
                     // Ctrl + C received
                     return;
                 }
+                
+                getLog().info("Refreshing");
+                try {
+                    if (currentStatus == Status.REFRESH) {
+                        rebuild();
+                        bakeAll = true;
+                    } else if (currentStatus == Status.CONFIG_CHANGED && reconfigure()) {
+                        bakeAll = true;
+                    }
+                    if (bakeAll) {
+                        bake();
+                        bakeAll = false;
+                    } else if (currentStatus == Status.ASSETS_CHANGED) {
+                        // Static files are just copied, nothing has to be parsed or rendered
+                        copyAssets(changedPaths);
+                    } else {
+                        bake(changedPaths);
+                    }
+                } catch (BakeCancelledException ex) {
+                    getLog().info("Newer changes arrived, restarting the bake");
+                    cancelledOutputs = union(cancelledOutputs, getOven().getChangedOutputs());
+                    synchronized (changes) {
+                        // The newer changes come after the ones of the cancelled bake
+                        ChangeSet newerChanges = new ChangeSet();
+                        newerChanges.addAll(changes);
+                        changes.clear();
+                        changes.addAll(changedPaths);
+                        changes.addAll(newerChanges);
+                        // A cancelled full bake is covered by bakeAll
+                        if (!bakeAll && currentStatus.compareTo(status) > 0) {
+                            status = currentStatus;
+                        }
+                        settled = true;
+                        baking = false;
+                    }
+                    continue;
+                }
+                synchronized (changes) {
+                    baking = false;
+                }
+                classifier = new ChangeClassifier(getOven().getConfiguration());
+                dependencies = getOven().getDependencies();
+                Set<File> changedOutputs = union(cancelledOutputs, getOven().getChangedOutputs());
+                cancelledOutputs = new LinkedHashSet<File>();
+                baked(changedOutputs);
             }
         } catch (Throwable ex) {
             throw new MojoExecutionException("Error while baking", ex);
-        } finally {
-            getLog().info("Shutting down...");
-            watcherService.shutdown();
         }
     }
+
+    private static Set<File> union(Set<File> outputs, Set<File> otherOutputs) {
+        if (outputs == null || otherOutputs == null) {
+            return null;
+        }
+        Set<File> union = new LinkedHashSet<File>(outputs);
+        union.addAll(otherOutputs);
+        return union;
+    }
 }
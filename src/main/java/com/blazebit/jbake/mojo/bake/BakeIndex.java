@@ -0,0 +1,472 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import com.blazebit.jbake.mojo.watcher.ChangeSet;
+import org.jbake.app.FileUtil;
+import org.jbake.app.configuration.JBakeConfiguration;
+import org.jbake.parser.Engines;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent fingerprint index of the sources of a site. For every content and asset file it records the content
+ * hash and the output files it produced. Along with that, a hash of the effective configuration and the templates
+ * is recorded which invalidates the whole index if it changes.
+ *
+ * @author Christian Beikov
+ */
+public class BakeIndex {
+
+    private static final Logger LOG = Logger.getLogger(BakeIndex.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CONFIGURATION_HASH = "#configuration";
+    private static final String TEMPLATE_HASH = "#templates";
+    private static final String GENERATED_OUTPUTS = "#generated";
+    // System properties of the JVM and parameters of the plugin that change between runs but don't influence the site
+    private static final String[] IGNORED_CONFIGURATION_PREFIXES = {
+        "java.", "javax.", "sun.", "jdk.", "os.", "user.", "file.", "path.", "line.", "awt.", "maven.", "classworlds.", "library.", "env.", "org.slf4j.",
+        "jna.", "jnidispatch.", "jansi.", "native.", "guice.", "jbake."
+    };
+
+    private String configurationHash;
+    private String templateHash;
+    private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+    // Outputs that don't belong to a single source like tag pages
+    private final Set<String> generatedOutputs = new LinkedHashSet<String>();
+
+    /**
+     * A source file along with its fingerprint and the output files relative to the destination folder.
+     */
+    public static class Entry {
+
+        private final String hash;
+        private final long size;
+        private final long lastModified;
+        private final Set<String> outputs = new LinkedHashSet<String>();
+
+        public Entry(String hash, long size, long lastModified) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public Set<String> getOutputs() {
+            return outputs;
+        }
+    }
+
+    /**
+     * Loads the index from the given file or returns an empty index if the file does not exist or can't be read.
+     *
+     * @param file The index file
+     * @return The index
+     */
+    public static BakeIndex load(File file) {
+        BakeIndex index = new BakeIndex();
+        if (!file.isFile()) {
+            return index;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (CONFIGURATION_HASH.equals(parts[0])) {
+                    index.configurationHash = parts[1];
+                } else if (TEMPLATE_HASH.equals(parts[0])) {
+                    index.templateHash = parts[1];
+                } else if (GENERATED_OUTPUTS.equals(parts[0])) {
+                    index.generatedOutputs.addAll(Arrays.asList(parts).subList(1, parts.length));
+                } else if (parts.length >= 4) {
+                    Entry entry = new Entry(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+                    entry.outputs.addAll(Arrays.asList(parts).subList(4, parts.length));
+                    index.entries.put(parts[0], entry);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.WARNING, "Could not read the bake index " + file + ", ignoring it", ex);
+            return new BakeIndex();
+        }
+
+        return index;
+    }
+
+    /**
+     * Creates the index for the current state of the sources. Hashes are reused from the previous index
+     * for files that have the same size and modification time.
+     *
+     * @param config The effective configuration
+     * @param previous The previous index
+     * @return The new index without outputs
+     */
+    public static BakeIndex create(JBakeConfiguration config, BakeIndex previous) {
+        BakeIndex index = new BakeIndex();
+        index.configurationHash = hashConfiguration(config);
+        index.templateHash = hashDirectory(config.getTemplateFolder());
+
+        Path sourceFolder = config.getSourceFolder().toPath();
+        index.addSources(sourceFolder, config.getContentFolder(), true, previous);
+        index.addSources(sourceFolder, config.getAssetFolder(), config.getAssetIgnoreHidden(), previous);
+        return index;
+    }
+
+    /**
+     * Saves the index atomically to the given file.
+     *
+     * @param file The index file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), UTF_8))) {
+            writer.write(CONFIGURATION_HASH + "\t" + configurationHash + "\n");
+            writer.write(TEMPLATE_HASH + "\t" + templateHash + "\n");
+            writer.write(GENERATED_OUTPUTS);
+            for (String output : generatedOutputs) {
+                writer.write("\t" + output);
+            }
+            writer.write("\n");
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                writer.write(mapEntry.getKey());
+                writer.write("\t" + entry.hash + "\t" + entry.size + "\t" + entry.lastModified);
+                for (String output : entry.outputs) {
+                    writer.write("\t" + output);
+                }
+                writer.write("\n");
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns whether the outputs of the other index can be reused i.e. the configuration and templates are the same.
+     *
+     * @param other The other index
+     * @return true if the configuration and template hashes match
+     */
+    public boolean isCompatible(BakeIndex other) {
+        return configurationHash != null && configurationHash.equals(other.configurationHash)
+                && templateHash != null && templateHash.equals(other.templateHash);
+    }
+
+    /**
+     * Computes the changes of the sources compared to the previous index. A source is also considered as modified
+     * if one of its outputs is missing in the destination folder.
+     *
+     * @param previous The previous index
+     * @param config The effective configuration
+     * @return The changed sources as absolute paths
+     */
+    public ChangeSet diff(BakeIndex previous, JBakeConfiguration config) {
+        Path sourceFolder = config.getSourceFolder().toPath().toAbsolutePath();
+        File destinationFolder = config.getDestinationFolder();
+        ChangeSet changes = new ChangeSet();
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Entry previousEntry = previous.entries.get(mapEntry.getKey());
+            Path path = sourceFolder.resolve(mapEntry.getKey());
+            if (previousEntry == null) {
+                changes.created(path);
+            } else if (!previousEntry.hash.equals(mapEntry.getValue().hash) || !exist(destinationFolder, previousEntry.outputs)) {
+                changes.modified(path);
+            }
+        }
+        for (String source : previous.entries.keySet()) {
+            if (!entries.containsKey(source)) {
+                changes.deleted(sourceFolder.resolve(source));
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Takes over the outputs from the previous index for all sources that weren't re-rendered and removes outputs
+     * of re-rendered or deleted sources that weren't produced again.
+     *
+     * @param previous The previous index
+     * @param renderedOutputs The outputs of the rendered documents by absolute source path
+     * @param renderedGeneratedOutputs The outputs of the overview pages or <code>null</code> if they weren't rendered
+     * @param changes The changes that were baked or <code>null</code> if everything was baked
+     * @param config The effective configuration
+     */
+    public void updateOutputs(BakeIndex previous, Map<String, Set<File>> renderedOutputs, Set<File> renderedGeneratedOutputs, ChangeSet changes, JBakeConfiguration config) {
+        Path sourceFolder = config.getSourceFolder().toPath().toAbsolutePath();
+        Path destinationFolder = config.getDestinationFolder().toPath().toAbsolutePath();
+        Path assetFolder = config.getAssetFolder().toPath().toAbsolutePath();
+        Path contentFolder = config.getContentFolder().toPath().toAbsolutePath();
+
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            Path source = sourceFolder.resolve(mapEntry.getKey());
+            Entry entry = mapEntry.getValue();
+            Set<File> rendered = renderedOutputs.get(source.toString());
+            if (rendered != null) {
+                for (File output : rendered) {
+                    entry.outputs.add(relativize(destinationFolder, output.toPath().toAbsolutePath()));
+                }
+            } else if (!isContentFile(source.toFile())) {
+                Path base = source.startsWith(assetFolder) ? assetFolder : contentFolder;
+                entry.outputs.add(relativize(destinationFolder, destinationFolder.resolve(base.relativize(source))));
+            } else {
+                Entry previousEntry = previous.entries.get(mapEntry.getKey());
+                if (previousEntry != null && changes != null && changes.get(source) == null) {
+                    entry.outputs.addAll(previousEntry.outputs);
+                }
+            }
+
+            Entry previousEntry = previous.entries.get(mapEntry.getKey());
+            if (previousEntry != null) {
+                List<String> staleOutputs = new ArrayList<String>(previousEntry.outputs);
+                staleOutputs.removeAll(entry.outputs);
+                deleteOutputs(destinationFolder.toFile(), staleOutputs);
+            }
+        }
+
+        List<String> staleOutputs = new ArrayList<String>();
+        for (Map.Entry<String, Entry> mapEntry : previous.entries.entrySet()) {
+            if (!entries.containsKey(mapEntry.getKey())) {
+                staleOutputs.addAll(mapEntry.getValue().outputs);
+            }
+        }
+
+        if (renderedGeneratedOutputs == null) {
+            generatedOutputs.addAll(previous.generatedOutputs);
+        } else {
+            for (File output : renderedGeneratedOutputs) {
+                generatedOutputs.add(relativize(destinationFolder, output.toPath().toAbsolutePath()));
+            }
+            for (String output : previous.generatedOutputs) {
+                if (!generatedOutputs.contains(output)) {
+                    staleOutputs.add(output);
+                }
+            }
+        }
+
+        // Outputs of deleted sources might have been taken over by another source
+        for (Entry entry : entries.values()) {
+            staleOutputs.removeAll(entry.outputs);
+        }
+        staleOutputs.removeAll(generatedOutputs);
+        deleteOutputs(destinationFolder.toFile(), staleOutputs);
+    }
+
+    public String getConfigurationHash() {
+        return configurationHash;
+    }
+
+    public String getTemplateHash() {
+        return templateHash;
+    }
+
+    public Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    private void addSources(Path sourceFolder, File directory, boolean ignoreHidden, BakeIndex previous) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isFile()) {
+                if (ignoreHidden && file.isHidden()) {
+                    continue;
+                }
+                String source = relativize(sourceFolder.toAbsolutePath(), file.toPath().toAbsolutePath());
+                long size = file.length();
+                long lastModified = file.lastModified();
+                Entry previousEntry = previous.entries.get(source);
+                String hash;
+                if (previousEntry != null && previousEntry.size == size && previousEntry.lastModified == lastModified) {
+                    hash = previousEntry.hash;
+                } else {
+                    hash = hashFile(file);
+                }
+                entries.put(source, new Entry(hash, size, lastModified));
+            } else if (FileUtil.directoryOnlyIfNotIgnored(file) && !(ignoreHidden && file.isHidden())) {
+                addSources(sourceFolder, file, ignoreHidden, previous);
+            }
+        }
+    }
+
+    private static boolean isContentFile(File file) {
+        return Engines.getRecognizedExtensions().contains(FileUtil.fileExt(file));
+    }
+
+    private static boolean exist(File destinationFolder, Collection<String> outputs) {
+        for (String output : outputs) {
+            if (!new File(destinationFolder, output).exists()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void deleteOutputs(File destinationFolder, Collection<String> outputs) {
+        for (String output : outputs) {
+            File file = new File(destinationFolder, output);
+            if (file.isFile() && !file.delete()) {
+                LOG.warning("Could not delete stale output " + file);
+            }
+        }
+    }
+
+    private static String relativize(Path base, Path path) {
+        return FileUtil.asPath(base.relativize(path).toString());
+    }
+
+    static String hashConfiguration(JBakeConfiguration config) {
+        MessageDigest digest = createDigest();
+        for (Map.Entry<String, String> entry : flattenConfiguration(config).entrySet()) {
+            digest.update(entry.getKey().getBytes(UTF_8));
+            digest.update((byte) '=');
+            digest.update(entry.getValue().getBytes(UTF_8));
+            digest.update((byte) '\n');
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Returns the string values of all configuration keys that may influence the site, sorted by key.
+     *
+     * @param config The configuration
+     * @return The configuration values by key
+     */
+    static Map<String, String> flattenConfiguration(JBakeConfiguration config) {
+        Map<String, String> values = new TreeMap<String, String>();
+        Iterator<String> iter = config.getKeys();
+        OUTER:
+        while (iter.hasNext()) {
+            String key = iter.next();
+            for (String prefix : IGNORED_CONFIGURATION_PREFIXES) {
+                if (key.startsWith(prefix)) {
+                    continue OUTER;
+                }
+            }
+            values.put(key, String.valueOf(config.get(key)));
+        }
+        return values;
+    }
+
+    static String hashDirectory(File directory) {
+        MessageDigest digest = createDigest();
+        hashDirectory(digest, directory.toPath(), directory);
+        return toHex(digest.digest());
+    }
+
+    private static void hashDirectory(MessageDigest digest, Path base, File directory) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files);
+        for (File file : files) {
+            digest.update(relativize(base, file.toPath()).getBytes(UTF_8));
+            if (file.isFile()) {
+                updateDigest(digest, file);
+            } else if (file.isDirectory()) {
+                hashDirectory(digest, base, file);
+            }
+        }
+    }
+
+    static String hashFile(File file) {
+        MessageDigest digest = createDigest();
+        updateDigest(digest, file);
+        return toHex(digest.digest());
+    }
+
+    private static void updateDigest(MessageDigest digest, File file) {
+        byte[] buffer = new byte[8192];
+        try (InputStream is = new FileInputStream(file)) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } catch (IOException ex) {
+            // Unreadable files just get a different fingerprint
+            LOG.log(Level.FINE, "Could not read " + file + " for hashing", ex);
+        }
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is not available", ex);
+        }
+    }
+
+    static String hash(byte[] bytes) {
+        return toHex(createDigest().digest(bytes));
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time spent per phase and per file during a bake along with file counts and the garbage collection
+ * and allocation deltas of the JVM. Metrics are only recorded by the thread that bakes, except for the allocations of
+ * pool threads, which are added as their tasks finish.
+ *
+ * @author Christian Beikov
+ */
+@SuppressWarnings("restriction")
+public class BakeMetrics {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static enum Phase {
+        SETUP,
+        CRAWL,
+        PARSE,
+        STORE,
+        RENDER,
+        ASSETS;
+    }
+
+    public static enum Count {
+        CRAWLED_FILES,
+        PARSED_FILES,
+        CACHED_FILES,
+        RENDERED_PAGES,
+        RESTORED_PAGES,
+        COPIED_ASSETS,
+        UNCHANGED_ASSETS,
+        WRITTEN_OUTPUTS,
+        UNCHANGED_OUTPUTS,
+        DELETED_OUTPUTS;
+    }
+
+    private final boolean measureAllocations;
+    private final Map<Phase, Long> phaseNanos = new EnumMap<Phase, Long>(Phase.class);
+    private final Map<Count, Integer> counts = new EnumMap<Count, Integer>(Count.class);
+    // Display name of a source file or overview page to its timing
+    private final Map<String, FileTiming> files = new TreeMap<String, FileTiming>();
+    private long startNanos;
+    private long startGcCount;
+    private long startGcMillis;
+    private long startAllocatedBytes;
+    private final AtomicLong taskAllocatedBytes = new AtomicLong();
+    private long totalNanos = -1;
+    private long gcCount;
+    private long gcMillis;
+    private long allocatedBytes = -1;
+    private int errors;
+
+    /**
+     * Creates metrics that don't measure allocations.
+     */
+    public BakeMetrics() {
+        this(false);
+    }
+
+    /**
+     * Creates metrics for a bake.
+     *
+     * @param measureAllocations Whether the bytes allocated by the threads of the bake should be measured
+     */
+    public BakeMetrics(boolean measureAllocations) {
+        this.measureAllocations = measureAllocations;
+    }
+
+    /**
+     * Records the current time and the garbage collection and allocation counters of the JVM.
+     */
+    public void start() {
+        startGcCount = currentGcCount();
+        startGcMillis = currentGcMillis();
+        startAllocatedBytes = threadAllocatedBytes();
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * Computes the deltas since {@link #start()}, subsequent calls have no effect.
+     *
+     * @param errors The number of errors that occurred while baking
+     */
+    public void stop(int errors) {
+        if (totalNanos != -1) {
+            return;
+        }
+        totalNanos = System.nanoTime() - startNanos;
+        gcCount = currentGcCount() - startGcCount;
+        gcMillis = currentGcMillis() - startGcMillis;
+        long allocated = threadAllocatedBytes();
+        allocatedBytes = allocated == -1 || startAllocatedBytes == -1 ? -1 : allocated - startAllocatedBytes + taskAllocatedBytes.get();
+        this.errors = errors;
+    }
+
+    /**
+     * Adds the bytes that the current thread allocated since the given count to the allocations of the bake.
+     * Unlike the other methods, this is called by pool threads when they finish a task of the bake.
+     *
+     * @param start The allocation count of the current thread as returned by {@link #threadAllocatedBytes()} before the task
+     */
+    public void recordAllocations(long start) {
+        if (start == -1) {
+            return;
+        }
+        long allocated = threadAllocatedBytes();
+        if (allocated != -1) {
+            taskAllocatedBytes.addAndGet(allocated - start);
+        }
+    }
+
+    /**
+     * Adds the time since the given start time to the phase.
+     *
+     * @param phase The phase
+     * @param start The start time as returned by {@link System#nanoTime()}
+     */
+    public void end(Phase phase, long start) {
+        add(phase, System.nanoTime() - start);
+    }
+
+    public void add(Phase phase, long nanos) {
+        Long previous = phaseNanos.get(phase);
+        phaseNanos.put(phase, previous == null ? nanos : previous + nanos);
+    }
+
+    public void increment(Count count) {
+        add(count, 1);
+    }
+
+    public void add(Count count, int value) {
+        Integer previous = counts.get(count);
+        counts.put(count, previous == null ? value : previous + value);
+    }
+
+    public void set(Count count, int value) {
+        counts.put(count, value);
+    }
+
+    public void parsed(String name, String extension, long nanos) {
+        FileTiming timing = getTiming(name);
+        timing.extension = extension;
+        timing.parseNanos += nanos;
+    }
+
+    public void rendered(String name, long nanos) {
+        getTiming(name).renderNanos += nanos;
+    }
+
+    private FileTiming getTiming(String name) {
+        FileTiming timing = files.get(name);
+        if (timing == null) {
+            timing = new FileTiming(name);
+            files.put(name, timing);
+        }
+        return timing;
+    }
+
+    public long getTotalMillis() {
+        return totalNanos / 1000000L;
+    }
+
+    public long getPhaseMillis(Phase phase) {
+        Long nanos = phaseNanos.get(phase);
+        return nanos == null ? 0L : nanos / 1000000L;
+    }
+
+    public int getCount(Count count) {
+        Integer value = counts.get(count);
+        return value == null ? 0 : value;
+    }
+
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    public long getGcMillis() {
+        return gcMillis;
+    }
+
+    /**
+     * Returns the bytes that were allocated during the bake by the thread that bakes and by the tasks it ran on pool threads.
+     *
+     * @return The allocated bytes or -1 if the JVM doesn't support measuring allocations
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns the source files and overview pages that took the longest to parse and render.
+     *
+     * @param limit The maximum number of files
+     * @return The slowest files, slowest first
+     */
+    public List<FileTiming> getSlowestFiles(int limit) {
+        List<FileTiming> slowest = new ArrayList<FileTiming>(files.values());
+        Collections.sort(slowest, new Comparator<FileTiming>() {
+            @Override
+            public int compare(FileTiming o1, FileTiming o2) {
+                long total1 = o1.getTotalNanos();
+                long total2 = o2.getTotalNanos();
+                return total1 < total2 ? 1 : total1 == total2 ? o1.name.compareTo(o2.name) : -1;
+            }
+        });
+        return slowest.subList(0, Math.min(Math.max(0, limit), slowest.size()));
+    }
+
+    /**
+     * Writes the metrics as JSON to the given file.
+     *
+     * @param file The report file
+     * @param slowest The number of slowest files to list separately
+     * @throws IOException
+     */
+    public void write(File file, int slowest) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create directory " + parent);
+        }
+
+        // Write to a temporary file first so that tools never read a partial report
+        File tempFile = new File(parent, file.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(Files.newOutputStream(tempFile.toPath()), UTF_8)) {
+            writer.write("{\n");
+            writer.write("  \"totalMillis\": " + millis(totalNanos) + ",\n");
+            writer.write("  \"phases\": {");
+            String separator = "\n";
+            for (Phase phase : Phase.values()) {
+                Long nanos = phaseNanos.get(phase);
+                writer.write(separator + "    " + quote(name(phase)) + ": " + millis(nanos == null ? 0L : nanos));
+                separator = ",\n";
+            }
+            writer.write("\n  },\n");
+            writer.write("  \"counts\": {");
+            separator = "\n";
+            for (Count count : Count.values()) {
+                writer.write(separator + "    " + quote(name(count)) + ": " + getCount(count));
+                separator = ",\n";
+            }
+            writer.write(",\n    \"errors\": " + errors + "\n  },\n");
+            writer.write("  \"engines\": {");
+            separator = "\n";
+            for (Map.Entry<String, long[]> entry : getEngineTimings().entrySet()) {
+                writer.write(separator + "    " + quote(entry.getKey()) + ": { \"files\": " + entry.getValue()[0]
+                    + ", \"parseMillis\": " + millis(entry.getValue()[1]) + " }");
+                separator = ",\n";
+            }
+            writer.write("\n  },\n");
+            writer.write("  \"gc\": { \"collections\": " + gcCount + ", \"millis\": " + gcMillis + " },\n");
+            writer.write("  \"allocatedBytes\": " + allocatedBytes + ",\n");
+            writer.write("  \"slowest\": [");
+            writeFiles(writer, getSlowestFiles(slowest));
+            writer.write("],\n");
+            writer.write("  \"files\": [");
+            writeFiles(writer, files.values());
+            writer.write("]\n");
+            writer.write("}\n");
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void writeFiles(Writer writer, Iterable<FileTiming> timings) throws IOException {
+        String separator = "\n";
+        boolean empty = true;
+        for (FileTiming timing : timings) {
+            writer.write(separator + "    { \"file\": " + quote(timing.name)
+                + ", \"parseMillis\": " + millis(timing.parseNanos)
+                + ", \"renderMillis\": " + millis(timing.renderNanos)
+                + ", \"totalMillis\": " + millis(timing.getTotalNanos()) + " }");
+            separator = ",\n";
+            empty = false;
+        }
+        if (!empty) {
+            writer.write("\n  ");
+        }
+    }
+
+    /**
+     * Returns the number of parsed files and the time spent parsing them by file extension, which identifies the markup engine.
+     */
+    private Map<String, long[]> getEngineTimings() {
+        Map<String, long[]> engines = new TreeMap<String, long[]>();
+        for (FileTiming timing : files.values()) {
+            if (timing.extension != null) {
+                long[] engine = engines.get(timing.extension);
+                if (engine == null) {
+                    engine = new long[2];
+                    engines.put(timing.extension, engine);
+                }
+                engine[0]++;
+                engine[1] += timing.parseNanos;
+            }
+        }
+        return engines;
+    }
+
+    private static String name(Enum<?> constant) {
+        // CRAWLED_FILES becomes crawledFiles
+        StringBuilder sb = new StringBuilder();
+        boolean upper = false;
+        for (char c : constant.name().toCharArray()) {
+            if (c == '_') {
+                upper = true;
+            } else {
+                sb.append(upper ? c : Character.toLowerCase(c));
+                upper = false;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static long currentGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0L, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long currentGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0L, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Returns the bytes that the current thread allocated since it started.
+     *
+     * @return The allocated bytes or -1 if allocations aren't measured or the JVM doesn't support measuring them
+     */
+    public long threadAllocatedBytes() {
+        if (!measureAllocations) {
+            return -1;
+        }
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+        if (!bean.isThreadAllocatedMemorySupported() || !bean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The time spent parsing and rendering a single source file or overview page.
+     */
+    public static class FileTiming {
+
+        private final String name;
+        private String extension;
+        private long parseNanos;
+        private long renderNanos;
+
+        private FileTiming(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getParseMillis() {
+            return parseNanos / 1000000L;
+        }
+
+        public long getRenderMillis() {
+            return renderNanos / 1000000L;
+        }
+
+        public long getTotalMillis() {
+            return getTotalNanos() / 1000000L;
+        }
+
+        private long getTotalNanos() {
+            return parseNanos + renderNanos;
+        }
+    }
+}
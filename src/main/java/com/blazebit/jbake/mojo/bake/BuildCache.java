@@ -0,0 +1,53 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import java.io.IOException;
+
+/**
+ * A content-addressed store for rendered pages that may be shared between builds of different working copies, branches or machines.
+ * Keys are hashes of everything a page depends on, so an entry never becomes stale and can be restored instead of rendering the page.
+ * Entries may vanish at any time, e.g. because another build evicted them, which is just a miss.
+ *
+ * @author Christian Beikov
+ */
+public interface BuildCache {
+
+    /**
+     * Returns the content of the entry with the given key.
+     *
+     * @param key The content hash of the page
+     * @return The rendered page or <code>null</code> if there is no entry for the key
+     * @throws IOException
+     */
+    public byte[] restore(String key) throws IOException;
+
+    /**
+     * Stores the given rendered page as entry for the given key unless there is one already.
+     *
+     * @param key The content hash of the page
+     * @param content The rendered page
+     * @throws IOException
+     */
+    public void store(String key, byte[] content) throws IOException;
+
+    /**
+     * Releases the resources of the cache and applies its retention policy.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException;
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import org.jbake.app.configuration.JBakeConfiguration;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Classifies changed paths by their location relative to the source folder of a site.
+ * Only the configuration files at the root of the source folder are considered configuration changes.
+ *
+ * @author Christian Beikov
+ */
+public class ChangeClassifier {
+
+    // The files that JBake loads from the root of the source folder
+    private static final Set<Path> CONFIG_FILES = new HashSet<Path>(Arrays.asList(
+        Paths.get("custom.properties"),
+        Paths.get("jbake.properties"),
+        Paths.get("default.properties")
+    ));
+
+    public static enum Category {
+        CONTENT,
+        TEMPLATE,
+        ASSET,
+        CONFIG,
+        OTHER;
+    }
+
+    private final Path sourceFolder;
+    private final Path contentFolder;
+    private final Path templateFolder;
+    private final Path assetFolder;
+
+    public ChangeClassifier(JBakeConfiguration config) {
+        this.sourceFolder = normalize(config.getSourceFolder());
+        this.contentFolder = normalize(config.getContentFolder());
+        this.templateFolder = normalize(config.getTemplateFolder());
+        this.assetFolder = normalize(config.getAssetFolder());
+    }
+
+    /**
+     * Returns the category of the given path. Paths outside of the site folders are classified as {@link Category#OTHER}.
+     *
+     * @param path The changed path
+     * @return The category
+     */
+    public Category classify(Path path) {
+        Path normalized = path.toAbsolutePath().normalize();
+        if (normalized.startsWith(sourceFolder) && CONFIG_FILES.contains(sourceFolder.relativize(normalized))) {
+            return Category.CONFIG;
+        }
+        if (normalized.startsWith(contentFolder)) {
+            return Category.CONTENT;
+        }
+        if (normalized.startsWith(templateFolder)) {
+            return Category.TEMPLATE;
+        }
+        if (normalized.startsWith(assetFolder)) {
+            return Category.ASSET;
+        }
+        return Category.OTHER;
+    }
+
+    private static Path normalize(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.MapConfiguration;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable flattened copy of a layered configuration, e.g. of the plugin properties, the project properties and the
+ * configuration files of a site, where every key maps to the value of the layer that wins. Lookups on a configuration
+ * created from a snapshot only consult a single map instead of every layer, which matters as templates read the whole
+ * configuration for every page. A snapshot records a fingerprint of its sources, so that it is only created again if one of them changed.
+ *
+ * @author Christian Beikov
+ */
+public class ConfigurationSnapshot {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // The files that JBake loads from the root of the source folder, the default.properties is taken from the classpath
+    private static final String[] CONFIGURATION_FILES = { "custom.properties", "jbake.properties" };
+
+    private final String fingerprint;
+    private final Map<String, Object> values;
+
+    private ConfigurationSnapshot(String fingerprint, Map<String, Object> values) {
+        this.fingerprint = fingerprint;
+        this.values = values;
+    }
+
+    /**
+     * Creates a snapshot of the current values of the given configuration. Values are kept as the configuration returns them,
+     * i.e. lists are already split and placeholders are resolved on lookup.
+     *
+     * @param config The layered configuration
+     * @param fingerprint The fingerprint of the sources of the configuration
+     * @return The snapshot
+     */
+    public static ConfigurationSnapshot create(Configuration config, String fingerprint) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        Iterator<String> iter = config.getKeys();
+        while (iter.hasNext()) {
+            String key = iter.next();
+            values.put(key, config.getProperty(key));
+        }
+        return new ConfigurationSnapshot(fingerprint, Collections.unmodifiableMap(values));
+    }
+
+    /**
+     * Returns a fingerprint of the given properties and the contents of the configuration files in the given source folder.
+     *
+     * @param properties The plugin properties or <code>null</code>
+     * @param projectProperties The project properties
+     * @param sourceFolder The source folder of the site
+     * @return The fingerprint
+     */
+    public static String fingerprint(Map<?, ?> properties, Map<?, ?> projectProperties, File sourceFolder) {
+        StringBuilder sb = new StringBuilder();
+        append(sb, properties);
+        sb.append('\n');
+        append(sb, projectProperties);
+        for (String name : CONFIGURATION_FILES) {
+            File file = new File(sourceFolder, name);
+            sb.append('\n').append(name).append('=').append(file.isFile() ? BakeIndex.hashFile(file) : "");
+        }
+        return BakeIndex.hash(sb.toString().getBytes(UTF_8));
+    }
+
+    private static void append(StringBuilder sb, Map<?, ?> properties) {
+        if (properties == null) {
+            return;
+        }
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<?, ?> entry : properties.entrySet()) {
+            sorted.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+        }
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public Map<String, Object> getValues() {
+        return values;
+    }
+
+    /**
+     * Returns a configuration with the values of this snapshot. JBake sets values like the destination folder on its configuration,
+     * so every call returns a configuration with its own copy of the values, which leaves the snapshot untouched.
+     *
+     * @return A new configuration
+     */
+    public CompositeConfiguration toConfiguration() {
+        MapConfiguration layer = new MapConfiguration(new LinkedHashMap<String, Object>(values));
+        // Lists are split already and splitting again would break values with escaped delimiters
+        layer.setDelimiterParsingDisabled(true);
+        CompositeConfiguration config = new CompositeConfiguration();
+        config.setListDelimiter(',');
+        config.addConfiguration(layer);
+        return config;
+    }
+}
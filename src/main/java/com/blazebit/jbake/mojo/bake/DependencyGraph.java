@@ -0,0 +1,403 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import com.blazebit.jbake.mojo.watcher.ChangeSet;
+import org.jbake.app.FileUtil;
+import org.jbake.app.configuration.JBakeConfiguration;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records which files the outputs of a bake depend on. Content files depend on the files they include and on the template
+ * of their document type, overview pages like the index depend on their template and templates depend on the templates
+ * they include. Changes of a file then only require to parse or render its transitive dependents again.
+ * The graph is persisted along with fingerprints of all dependencies and templates, so that an incremental build can
+ * find out which dependencies changed since the graph was saved.
+ * All methods are thread safe, as the graph is updated while parsing and queried by the watcher threads.
+ *
+ * @author Christian Beikov
+ */
+public class DependencyGraph {
+
+    private static final Logger LOG = Logger.getLogger(DependencyGraph.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String FINGERPRINT = "#file";
+
+    // Guarded by this
+    private final Map<Path, Set<Path>> dependencies = new HashMap<Path, Set<Path>>();
+    // The reverse edges, built on demand after the graph changed
+    private Map<Path, Set<Path>> dependents;
+    private final Map<Path, Fingerprint> fingerprints = new HashMap<Path, Fingerprint>();
+
+    /**
+     * The state of a dependency when the graph was saved.
+     */
+    private static class Fingerprint {
+
+        private final String hash;
+        private final long size;
+        private final long lastModified;
+
+        public Fingerprint(String hash, long size, long lastModified) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Loads the graph from the given file or returns an empty graph if the file does not exist or can't be read.
+     *
+     * @param file The graph file
+     * @param config The configuration against whose source folder relative paths are resolved
+     * @return The graph
+     */
+    public static DependencyGraph load(File file, JBakeConfiguration config) {
+        DependencyGraph graph = new DependencyGraph();
+        if (!file.isFile()) {
+            return graph;
+        }
+
+        Path sourceFolder = normalize(config.getSourceFolder().toPath());
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (FINGERPRINT.equals(parts[0])) {
+                    graph.fingerprints.put(sourceFolder.resolve(parts[1]), new Fingerprint(parts[2], Long.parseLong(parts[3]), Long.parseLong(parts[4])));
+                } else {
+                    Set<Path> paths = new LinkedHashSet<Path>();
+                    for (int i = 1; i < parts.length; i++) {
+                        paths.add(sourceFolder.resolve(parts[i]));
+                    }
+                    graph.dependencies.put(sourceFolder.resolve(parts[0]), paths);
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.WARNING, "Could not read the dependency graph " + file + ", ignoring it", ex);
+            return new DependencyGraph();
+        }
+        return graph;
+    }
+
+    /**
+     * Saves the graph atomically to the given file along with the fingerprints of all dependencies and templates.
+     * Paths within the source folder are saved relative to it.
+     *
+     * @param file The graph file
+     * @param config The configuration
+     * @throws IOException
+     */
+    public synchronized void save(File file, JBakeConfiguration config) throws IOException {
+        Path sourceFolder = normalize(config.getSourceFolder().toPath());
+        Map<Path, Fingerprint> currentFingerprints = new TreeMap<Path, Fingerprint>();
+        for (Set<Path> paths : dependencies.values()) {
+            for (Path path : paths) {
+                addFingerprint(currentFingerprints, path);
+            }
+        }
+        for (Path template : listFiles(config.getTemplateFolder())) {
+            addFingerprint(currentFingerprints, template);
+        }
+        fingerprints.clear();
+        fingerprints.putAll(currentFingerprints);
+
+        file.getParentFile().mkdirs();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), UTF_8))) {
+            for (Map.Entry<Path, Fingerprint> entry : currentFingerprints.entrySet()) {
+                Fingerprint fingerprint = entry.getValue();
+                writer.write(FINGERPRINT + "\t" + relativize(sourceFolder, entry.getKey()) + "\t" + fingerprint.hash + "\t" + fingerprint.size + "\t" + fingerprint.lastModified + "\n");
+            }
+            for (Map.Entry<Path, Set<Path>> entry : new TreeMap<Path, Set<Path>>(dependencies).entrySet()) {
+                writer.write(relativize(sourceFolder, entry.getKey()));
+                for (Path path : entry.getValue()) {
+                    writer.write("\t" + relativize(sourceFolder, path));
+                }
+                writer.write("\n");
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Computes the changes of the dependencies and templates since the graph was saved.
+     *
+     * @param config The configuration
+     * @return The changed files or <code>null</code> if a template changed that nothing is known to depend on
+     */
+    public synchronized ChangeSet diff(JBakeConfiguration config) {
+        Path templateFolder = normalize(config.getTemplateFolder().toPath());
+        ChangeSet changes = new ChangeSet();
+        Set<Path> templates = new LinkedHashSet<Path>(listFiles(config.getTemplateFolder()));
+        for (Map.Entry<Path, Fingerprint> entry : fingerprints.entrySet()) {
+            Path path = entry.getKey();
+            Fingerprint fingerprint = entry.getValue();
+            templates.remove(path);
+            File file = path.toFile();
+            if (!file.isFile()) {
+                changes.deleted(path);
+            } else if (file.length() != fingerprint.size || file.lastModified() != fingerprint.lastModified) {
+                if (!fingerprint.hash.equals(BakeIndex.hashFile(file))) {
+                    changes.modified(path);
+                }
+            }
+        }
+        for (Path template : templates) {
+            changes.created(template);
+        }
+
+        for (Path path : changes.getChanges().keySet()) {
+            if (path.startsWith(templateFolder) && getDependents(path).isEmpty()) {
+                return null;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Replaces the dependencies of the given file.
+     *
+     * @param dependent The dependent file
+     * @param paths The files it depends on
+     */
+    public synchronized void setDependencies(Path dependent, Collection<Path> paths) {
+        dependencies.put(normalize(dependent), normalize(paths));
+        dependents = null;
+    }
+
+    /**
+     * Records that the given file depends on the template and scans the template for included templates if it is unknown.
+     *
+     * @param dependent The dependent content file or output of an overview page
+     * @param template The template
+     * @param templateFolder The template folder
+     */
+    public synchronized void addTemplate(Path dependent, Path template, Path templateFolder) {
+        Path normalizedTemplate = normalize(template);
+        Path normalizedDependent = normalize(dependent);
+        Set<Path> paths = dependencies.get(normalizedDependent);
+        if (paths == null) {
+            paths = new LinkedHashSet<Path>();
+            dependencies.put(normalizedDependent, paths);
+        }
+        if (paths.add(normalizedTemplate)) {
+            dependents = null;
+        }
+        if (!dependencies.containsKey(normalizedTemplate)) {
+            scanTemplate(normalizedTemplate, templateFolder);
+        }
+    }
+
+    /**
+     * Scans the given template and the templates it includes for their includes again, e.g. after it changed.
+     *
+     * @param template The template
+     * @param templateFolder The template folder
+     */
+    public synchronized void scanTemplate(Path template, Path templateFolder) {
+        Deque<Path> queue = new ArrayDeque<Path>();
+        queue.add(normalize(template));
+        boolean first = true;
+        while (!queue.isEmpty()) {
+            Path path = queue.poll();
+            if (!first && dependencies.containsKey(path)) {
+                continue;
+            }
+            first = false;
+            Set<Path> includes = DependencyScanner.scanTemplateIncludes(path, normalize(templateFolder));
+            dependencies.put(path, includes);
+            queue.addAll(includes);
+        }
+        dependents = null;
+    }
+
+    /**
+     * Removes the dependencies of the given file, e.g. because it was deleted.
+     *
+     * @param dependent The dependent file
+     */
+    public synchronized void remove(Path dependent) {
+        if (dependencies.remove(normalize(dependent)) != null) {
+            dependents = null;
+        }
+    }
+
+    /**
+     * Returns whether the dependencies of the given file are known.
+     *
+     * @param dependent The dependent file
+     * @return true if the dependencies were recorded
+     */
+    public synchronized boolean contains(Path dependent) {
+        return dependencies.containsKey(normalize(dependent));
+    }
+
+    /**
+     * Returns the files the given file depends on directly.
+     *
+     * @param dependent The dependent file
+     * @return The included files and templates, empty if the dependencies are unknown
+     */
+    public synchronized Set<Path> getDependencies(Path dependent) {
+        Set<Path> paths = dependencies.get(normalize(dependent));
+        return paths == null ? Collections.<Path>emptySet() : new LinkedHashSet<Path>(paths);
+    }
+
+    /**
+     * Returns the files with includes that couldn't be resolved, which might depend on any file.
+     *
+     * @return The dependent content files
+     */
+    public synchronized Set<Path> getUnresolvedDependents() {
+        Set<Path> result = new LinkedHashSet<Path>();
+        for (Map.Entry<Path, Set<Path>> entry : dependencies.entrySet()) {
+            for (Path dependency : entry.getValue()) {
+                if (DependencyScanner.isUnresolved(dependency)) {
+                    result.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether anything depends on the given file.
+     *
+     * @param path The file
+     * @return true if there are dependents
+     */
+    public synchronized boolean hasDependents(Path path) {
+        Set<Path> directDependents = getReverseEdges().get(normalize(path));
+        return directDependents != null && !directDependents.isEmpty();
+    }
+
+    /**
+     * Returns the files that depend on the given file directly or transitively.
+     *
+     * @param path The changed file
+     * @return The dependent files, which are content files, templates and outputs of overview pages
+     */
+    public synchronized Set<Path> getDependents(Path path) {
+        Map<Path, Set<Path>> reverseEdges = getReverseEdges();
+        Set<Path> result = new LinkedHashSet<Path>();
+        Deque<Path> queue = new ArrayDeque<Path>();
+        queue.add(normalize(path));
+        while (!queue.isEmpty()) {
+            Set<Path> directDependents = reverseEdges.get(queue.poll());
+            if (directDependents != null) {
+                for (Path dependent : directDependents) {
+                    if (result.add(dependent)) {
+                        queue.add(dependent);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    public synchronized boolean isEmpty() {
+        return dependencies.isEmpty();
+    }
+
+    private Map<Path, Set<Path>> getReverseEdges() {
+        if (dependents == null) {
+            dependents = new HashMap<Path, Set<Path>>();
+            for (Map.Entry<Path, Set<Path>> entry : dependencies.entrySet()) {
+                for (Path dependency : entry.getValue()) {
+                    Set<Path> paths = dependents.get(dependency);
+                    if (paths == null) {
+                        paths = new LinkedHashSet<Path>();
+                        dependents.put(dependency, paths);
+                    }
+                    paths.add(entry.getKey());
+                }
+            }
+        }
+        return dependents;
+    }
+
+    private void addFingerprint(Map<Path, Fingerprint> currentFingerprints, Path path) {
+        File file = path.toFile();
+        if (currentFingerprints.containsKey(path) || !file.isFile()) {
+            return;
+        }
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Fingerprint previous = fingerprints.get(path);
+        if (previous != null && previous.size == size && previous.lastModified == lastModified) {
+            currentFingerprints.put(path, previous);
+        } else {
+            currentFingerprints.put(path, new Fingerprint(BakeIndex.hashFile(file), size, lastModified));
+        }
+    }
+
+    private static Set<Path> listFiles(File directory) {
+        Set<Path> files = new LinkedHashSet<Path>();
+        File[] contents = directory.listFiles();
+        if (contents != null) {
+            for (File file : contents) {
+                if (file.isFile()) {
+                    files.add(normalize(file.toPath()));
+                } else if (file.isDirectory()) {
+                    files.addAll(listFiles(file));
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String relativize(Path base, Path path) {
+        return path.startsWith(base) ? FileUtil.asPath(base.relativize(path).toString()) : FileUtil.asPath(path.toString());
+    }
+
+    private static Set<Path> normalize(Collection<Path> paths) {
+        Set<Path> normalized = new LinkedHashSet<Path>(paths.size());
+        for (Path path : paths) {
+            normalized.add(normalize(path));
+        }
+        return normalized;
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the files that a content file or a template includes by scanning for the include directives of Asciidoctor
+ * and the supported template engines. Includes with targets that are computed at runtime can't be found,
+ * which is why changes of templates that aren't known as dependency still cause a full bake. Asciidoctor includes
+ * whose target can't be resolved are reported as {@link #UNRESOLVED_INCLUDE}, as the document might depend on any file.
+ *
+ * @author Christian Beikov
+ */
+final class DependencyScanner {
+
+    private static final Logger LOG = Logger.getLogger(DependencyScanner.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Set<String> ASCIIDOC_EXTENSIONS = new HashSet<String>(Arrays.asList("adoc", "asciidoc", "ad", "asc"));
+    private static final Pattern ASCIIDOC_INCLUDE = Pattern.compile("^include::([^\\[]+)\\[", Pattern.MULTILINE);
+    private static final Pattern ASCIIDOC_ATTRIBUTE = Pattern.compile("^:([\\w-]+):[ \\t]+(.*)$", Pattern.MULTILINE);
+    private static final Pattern ASCIIDOC_ATTRIBUTE_REFERENCE = Pattern.compile("\\{([\\w-]+)\\}");
+    private static final Pattern[] TEMPLATE_INCLUDES = {
+        // Freemarker with angle or square bracket syntax
+        Pattern.compile("[<\\[]#(?:include|import)\\s+[\"']([^\"']+)[\"']"),
+        // Thymeleaf fragment expressions
+        Pattern.compile("(?:th:(?:replace|insert|include)|layout:decorate)\\s*=\\s*[\"'](?:~\\{)?\\s*([^:\"'}\\s]+)"),
+        // Groovy markup templates
+        Pattern.compile("include\\s+template\\s*:\\s*[\"']([^\"']+)[\"']"),
+        // Pebble
+        Pattern.compile("\\{%-?\\s*(?:include|extends|import|embed)\\s+[\"']([^\"']+)[\"']"),
+        // Jade
+        Pattern.compile("^\\s*(?:include|extends)\\s+([^\\s\"']+)\\s*$", Pattern.MULTILINE)
+    };
+
+    /**
+     * Stands for an include whose target uses attributes that are unknown to the scanner, e.g. ones passed through the configuration.
+     */
+    public static final Path UNRESOLVED_INCLUDE = Paths.get(".jbake-unresolved-include");
+
+    private DependencyScanner() {
+    }
+
+    /**
+     * Returns whether the file might include other files.
+     *
+     * @param file The content file
+     * @return true for Asciidoctor documents
+     */
+    public static boolean hasIncludes(Path file) {
+        String name = file.getFileName().toString();
+        int index = name.lastIndexOf('.');
+        return index != -1 && ASCIIDOC_EXTENSIONS.contains(name.substring(index + 1));
+    }
+
+    /**
+     * Returns the existing files that the given Asciidoctor document includes, directly or through included documents.
+     * Include targets are resolved like Asciidoctor does relative to the directory of the including file, attribute references
+     * are resolved with the attributes that are defined in the documents. If a target can't be resolved,
+     * the result contains {@link #UNRESOLVED_INCLUDE}.
+     *
+     * @param file The content file
+     * @return The included files
+     */
+    public static Set<Path> scanIncludes(Path file) {
+        Set<Path> includes = new LinkedHashSet<Path>();
+        if (hasIncludes(file)) {
+            scanIncludes(file, new HashMap<String, String>(), includes);
+        }
+        return includes;
+    }
+
+    private static void scanIncludes(Path file, Map<String, String> attributes, Set<Path> includes) {
+        String content = read(file);
+        if (content == null) {
+            return;
+        }
+
+        Matcher attributeMatcher = ASCIIDOC_ATTRIBUTE.matcher(content);
+        while (attributeMatcher.find()) {
+            attributes.put(attributeMatcher.group(1), attributeMatcher.group(2).trim());
+        }
+        Matcher matcher = ASCIIDOC_INCLUDE.matcher(content);
+        while (matcher.find()) {
+            String target = resolveAttributes(matcher.group(1).trim(), attributes);
+            if (target == null) {
+                includes.add(UNRESOLVED_INCLUDE);
+                continue;
+            }
+            if (target.contains("://")) {
+                continue;
+            }
+            Path include = resolve(file.getParent(), target);
+            if (include != null && Files.isRegularFile(include) && includes.add(include) && hasIncludes(include)) {
+                scanIncludes(include, attributes, includes);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the given dependency is the marker of an include that couldn't be resolved.
+     *
+     * @param path The dependency
+     * @return true for {@link #UNRESOLVED_INCLUDE}, also after it was made absolute
+     */
+    public static boolean isUnresolved(Path path) {
+        Path name = path.getFileName();
+        return name != null && name.equals(UNRESOLVED_INCLUDE);
+    }
+
+    /**
+     * Returns the existing templates that the given template includes directly. Targets are resolved relative to the
+     * directory of the template and to the template folder, also with the extension of the template.
+     *
+     * @param template The template file
+     * @param templateFolder The template folder
+     * @return The included templates
+     */
+    public static Set<Path> scanTemplateIncludes(Path template, Path templateFolder) {
+        Set<Path> includes = new LinkedHashSet<Path>();
+        String content = read(template);
+        if (content == null) {
+            return includes;
+        }
+
+        String name = template.getFileName().toString();
+        String extension = name.lastIndexOf('.') == -1 ? "" : name.substring(name.lastIndexOf('.'));
+        for (Pattern pattern : TEMPLATE_INCLUDES) {
+            Matcher matcher = pattern.matcher(content);
+            while (matcher.find()) {
+                String target = matcher.group(1);
+                List<Path> candidates = Arrays.asList(
+                        target.startsWith("/") ? null : resolve(template.getParent(), target),
+                        resolve(templateFolder, stripLeadingSlash(target)),
+                        target.startsWith("/") ? null : resolve(template.getParent(), target + extension),
+                        resolve(templateFolder, stripLeadingSlash(target) + extension)
+                );
+                for (Path candidate : candidates) {
+                    if (candidate != null && !candidate.equals(template) && Files.isRegularFile(candidate)) {
+                        includes.add(candidate);
+                        break;
+                    }
+                }
+            }
+        }
+        return includes;
+    }
+
+    private static String resolveAttributes(String target, Map<String, String> attributes) {
+        Matcher matcher = ASCIIDOC_ATTRIBUTE_REFERENCE.matcher(target);
+        StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            String value = attributes.get(matcher.group(1));
+            if (value == null) {
+                // Attributes that are passed through the configuration are unknown here
+                return null;
+            }
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(value));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static Path resolve(Path directory, String target) {
+        try {
+            return directory.resolve(target).toAbsolutePath().normalize();
+        } catch (InvalidPathException ex) {
+            return null;
+        }
+    }
+
+    private static String stripLeadingSlash(String target) {
+        return target.startsWith("/") ? target.substring(1) : target;
+    }
+
+    private static String read(Path file) {
+        try {
+            return new String(Files.readAllBytes(file), UTF_8);
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not scan " + file + " for includes", ex);
+            return null;
+        }
+    }
+}
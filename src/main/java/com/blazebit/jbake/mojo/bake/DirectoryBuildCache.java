@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A build cache in a directory that may be shared by several builds, e.g. on a network file system.
+ * Entries are files named after their key and are written to a temporary file first and then moved into place,
+ * so that concurrent builds never see partial entries. The modification time of an entry is updated on every hit,
+ * and on closing the least recently used entries are deleted until the cache is smaller than the maximum size.
+ *
+ * @author Christian Beikov
+ */
+public class DirectoryBuildCache implements BuildCache {
+
+    private static final Logger LOG = Logger.getLogger(DirectoryBuildCache.class.getName());
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Temporary files of builds that were killed while storing an entry are deleted after this time
+    private static final long TEMP_FILE_MAX_AGE = 60L * 60L * 1000L;
+
+    private final Path directory;
+    private final long maxSize;
+
+    /**
+     * Creates a cache in the given directory.
+     *
+     * @param directory The cache directory
+     * @param maxSize The maximum size of all entries in bytes
+     */
+    public DirectoryBuildCache(File directory, long maxSize) {
+        this.directory = directory.toPath().toAbsolutePath().normalize();
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public byte[] restore(String key) throws IOException {
+        Path entry = getEntry(key);
+        byte[] content;
+        try {
+            content = Files.readAllBytes(entry);
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+        touch(entry);
+        return content;
+    }
+
+    @Override
+    public void store(String key, byte[] content) throws IOException {
+        Path entry = getEntry(key);
+        if (Files.exists(entry)) {
+            touch(entry);
+            return;
+        }
+
+        Files.createDirectories(entry.getParent());
+        Path tempFile = entry.resolveSibling(entry.getFileName() + "." + UUID.randomUUID() + TEMP_SUFFIX);
+        try {
+            Files.write(tempFile, content);
+            try {
+                Files.move(tempFile, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is smaller than the maximum size.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final List<CacheEntry> entries = new ArrayList<CacheEntry>();
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                long lastModified = attrs.lastModifiedTime().toMillis();
+                if (!file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    entries.add(new CacheEntry(file, attrs.size(), lastModified));
+                } else if (now - lastModified > TEMP_FILE_MAX_AGE) {
+                    Files.deleteIfExists(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                // Another build might have evicted the file in the meantime
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        long size = 0L;
+        for (CacheEntry entry : entries) {
+            size += entry.size;
+        }
+        if (size <= maxSize) {
+            return;
+        }
+
+        Collections.sort(entries, new Comparator<CacheEntry>() {
+            @Override
+            public int compare(CacheEntry o1, CacheEntry o2) {
+                return o1.lastModified < o2.lastModified ? -1 : o1.lastModified == o2.lastModified ? 0 : 1;
+            }
+        });
+        int evicted = 0;
+        for (CacheEntry entry : entries) {
+            if (size <= maxSize) {
+                break;
+            }
+            if (Files.deleteIfExists(entry.path)) {
+                evicted++;
+            }
+            size -= entry.size;
+        }
+        LOG.log(Level.FINE, "Evicted " + evicted + " entries from the build cache " + directory);
+    }
+
+    public File getDirectory() {
+        return directory.toFile();
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    private Path getEntry(String key) {
+        // Spreading the entries over sub-directories keeps directories small, which some file systems need
+        return directory.resolve(key.substring(0, 2)).resolve(key.substring(2));
+    }
+
+    private static void touch(Path entry) {
+        try {
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ex) {
+            // Might have been evicted by another build, which only makes it a miss for the next build
+            LOG.log(Level.FINE, "Could not touch the build cache entry " + entry, ex);
+        }
+    }
+
+    private static class CacheEntry {
+
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+
+        public CacheEntry(Path path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
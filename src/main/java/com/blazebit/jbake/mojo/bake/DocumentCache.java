@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A directory based cache for parsed documents so that unchanged sources don't have to be parsed again
+ * when the content store is populated in a new JVM.
+ *
+ * @author Christian Beikov
+ */
+public class DocumentCache {
+
+    private static final Logger LOG = Logger.getLogger(DocumentCache.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File directory;
+
+    public DocumentCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the cached document of the given source file if the source hash matches.
+     *
+     * @param sourceFile The source file
+     * @param sha1 The hash of the current source file contents or <code>null</code> to accept any cached version
+     * @return The document or <code>null</code>
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> get(File sourceFile, String sha1) {
+        File file = getFile(sourceFile);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            String cachedSha1 = (String) ois.readObject();
+            if (sha1 != null && !sha1.equals(cachedSha1)) {
+                return null;
+            }
+            return (Map<String, Object>) ois.readObject();
+        } catch (IOException | ClassNotFoundException | RuntimeException ex) {
+            LOG.log(Level.FINE, "Could not read cached document " + file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Caches the document of the given source file. Documents that can't be serialized are skipped.
+     *
+     * @param sourceFile The source file
+     * @param sha1 The hash of the source file contents
+     * @param document The parsed document
+     */
+    public void put(File sourceFile, String sha1, Map<String, Object> document) {
+        File file = getFile(sourceFile);
+        file.getParentFile().mkdirs();
+
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            oos.writeObject(sha1);
+            oos.writeObject(toSerializable(document));
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.FINE, "Could not cache document of " + sourceFile, ex);
+            file.delete();
+        }
+    }
+
+    public void remove(File sourceFile) {
+        getFile(sourceFile).delete();
+    }
+
+    public boolean exists() {
+        return directory.isDirectory();
+    }
+
+    public void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.mkdirs();
+    }
+
+    private File getFile(File sourceFile) {
+        String name = BakeIndex.hash(sourceFile.getAbsolutePath().getBytes(UTF_8));
+        return new File(directory, name);
+    }
+
+    private static HashMap<String, Object> toSerializable(Map<String, Object> document) {
+        HashMap<String, Object> copy = new HashMap<String, Object>(document.size());
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Collection<?> && !(value instanceof Serializable)) {
+                value = new ArrayList<Object>((Collection<?>) value);
+            }
+            copy.put(entry.getKey(), value);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import org.jbake.app.ContentStore;
+import org.jbake.app.Parser;
+import org.jbake.app.configuration.DefaultJBakeConfiguration;
+import org.jbake.app.configuration.JBakeConfiguration;
+import org.jbake.parser.Engines;
+import org.jbake.parser.ErrorEngine;
+import org.jbake.parser.ParserEngine;
+import org.jbake.template.DelegatingTemplateEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the template engines and the configuration object they are bound to across {@link IncrementalOven} instances,
+ * so that re-creating an oven after a configuration change doesn't initialize the template engines again.
+ * The markup engines like Asciidoctor are registered JVM-wide by JBake and can be warmed up in the background.
+ *
+ * @author Christian Beikov
+ */
+public class EnginePool {
+
+    private static final Logger LOG = Logger.getLogger(EnginePool.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Prefixes of the configuration keys that template engines read when they are created
+    private static final String[] TEMPLATE_ENGINE_CONFIGURATION_PREFIXES = {
+        "template.", "templateFolder", "render.encoding", "thymeleaf."
+    };
+    // A JBake style header is understood by all markup engines
+    private static final String WARMUP_DOCUMENT = "title=Warmup\nstatus=draft\ntype=post\n~~~~~~\n\nWarmup *document*.\n";
+
+    // Guarded by this
+    private DefaultJBakeConfiguration configuration;
+    private ContentStore contentStore;
+    private String contentStoreType;
+    private String contentStorePath;
+    private DelegatingTemplateEngine templateEngine;
+    private ContentStore templateEngineStore;
+    private JBakeConfiguration templateEngineConfig;
+    private Map<String, String> templateEngineKey;
+    private FutureTask<DelegatingTemplateEngine> warmUp;
+    private ContentStore warmUpStore;
+    private JBakeConfiguration warmUpConfig;
+    private Map<String, String> warmUpKey;
+
+    /**
+     * Returns the configuration object that is shared by all ovens of this pool with the values of the given configuration.
+     * Template engines are bound to a configuration object, so it has to be the same one for them to be reused.
+     *
+     * @param config The new configuration
+     * @return The configuration to use for a new oven
+     */
+    public synchronized JBakeConfiguration getConfiguration(JBakeConfiguration config) {
+        if (!(config instanceof DefaultJBakeConfiguration)) {
+            return config;
+        }
+        DefaultJBakeConfiguration newConfiguration = (DefaultJBakeConfiguration) config;
+        if (configuration == null) {
+            configuration = newConfiguration;
+        } else if (configuration != newConfiguration) {
+            configuration.setCompositeConfiguration(newConfiguration.getCompositeConfiguration());
+        }
+        return configuration;
+    }
+
+    /**
+     * Returns the content store for the ovens of this pool. Unlike the JVM-wide store of JBake, every pool has its own store,
+     * so that ovens of different pools can bake concurrently. Ovens start the store when they start baking and shut it down when closed.
+     * The same store is returned as long as the database type and path don't change, which allows to keep the template engines.
+     *
+     * @param config The configuration
+     * @return The content store
+     */
+    public synchronized ContentStore getContentStore(JBakeConfiguration config) {
+        String type = config.getDatabaseStore();
+        String path = config.getDatabasePath();
+        if (contentStore == null || !type.equals(contentStoreType) || !path.equals(contentStorePath)) {
+            contentStore = new ContentStore(type, path);
+            contentStoreType = type;
+            contentStorePath = path;
+        }
+        return contentStore;
+    }
+
+    /**
+     * Returns a template engine for the given content store and configuration.
+     * The pooled engine is reused unless configuration values changed that template engines read when they are created.
+     *
+     * @param db The content store
+     * @param config The configuration
+     * @return The template engine
+     */
+    public synchronized DelegatingTemplateEngine getTemplateEngine(ContentStore db, JBakeConfiguration config) {
+        Map<String, String> key = getTemplateEngineKey(config);
+        if (warmUp != null) {
+            FutureTask<DelegatingTemplateEngine> task = warmUp;
+            warmUp = null;
+            try {
+                setTemplateEngine(task.get(), warmUpStore, warmUpConfig, warmUpKey);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                LOG.log(Level.FINE, "Could not warm up the template engines", ex.getCause());
+            }
+        }
+
+        if (templateEngine == null || templateEngineStore != db || templateEngineConfig != config || !key.equals(templateEngineKey)) {
+            setTemplateEngine(new DelegatingTemplateEngine(db, config), db, config, key);
+        }
+        return templateEngine;
+    }
+
+    /**
+     * Discards the pooled template engine, which is necessary when templates changed as engines cache them.
+     */
+    public synchronized void invalidateTemplateEngine() {
+        templateEngine = null;
+        templateEngineStore = null;
+        templateEngineConfig = null;
+        templateEngineKey = null;
+    }
+
+    /**
+     * Initializes the markup engines and creates the template engines for the given configuration in a background thread.
+     *
+     * @param config The configuration as returned by {@link #getConfiguration(JBakeConfiguration)}
+     */
+    public synchronized void warmUp(final JBakeConfiguration config) {
+        if (warmUp != null) {
+            return;
+        }
+
+        // The content store is only accessed while rendering, so it is safe to pass it to the engines
+        final ContentStore db = getContentStore(config);
+        warmUpStore = db;
+        warmUpConfig = config;
+        warmUpKey = getTemplateEngineKey(config);
+        final FutureTask<DelegatingTemplateEngine> task = new FutureTask<DelegatingTemplateEngine>(new Callable<DelegatingTemplateEngine>() {
+            @Override
+            public DelegatingTemplateEngine call() throws Exception {
+                return new DelegatingTemplateEngine(db, config);
+            }
+        });
+        warmUp = task;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                // The template engines are needed first, so an oven doesn't have to wait for the markup engines
+                task.run();
+                try {
+                    warmUpMarkupEngines(config);
+                } catch (IOException | RuntimeException ex) {
+                    LOG.log(Level.FINE, "Could not warm up the markup engines", ex);
+                }
+                LOG.fine("Warmed up engines in " + (System.currentTimeMillis() - start) + "ms");
+            }
+        }, "EnginePool-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void setTemplateEngine(DelegatingTemplateEngine engine, ContentStore db, JBakeConfiguration config, Map<String, String> key) {
+        templateEngine = engine;
+        templateEngineStore = db;
+        templateEngineConfig = config;
+        templateEngineKey = key;
+    }
+
+    private static void warmUpMarkupEngines(JBakeConfiguration config) throws IOException {
+        File directory = Files.createTempDirectory("jbake-warmup").toFile();
+        try {
+            Parser parser = new Parser(config);
+            Set<ParserEngine> engines = Collections.newSetFromMap(new IdentityHashMap<ParserEngine, Boolean>());
+            for (String extension : Engines.getRecognizedExtensions()) {
+                ParserEngine engine = Engines.get(extension);
+                if (engine instanceof ErrorEngine || !engines.add(engine)) {
+                    continue;
+                }
+                File file = new File(directory, "warmup." + extension);
+                Files.write(file.toPath(), WARMUP_DOCUMENT.getBytes(UTF_8));
+                try {
+                    parser.processFile(file);
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.FINE, "Could not warm up the markup engine for " + extension, ex);
+                } finally {
+                    file.delete();
+                }
+            }
+        } finally {
+            directory.delete();
+        }
+    }
+
+    private static Map<String, String> getTemplateEngineKey(JBakeConfiguration config) {
+        Map<String, String> key = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : BakeIndex.flattenConfiguration(config).entrySet()) {
+            for (String prefix : TEMPLATE_ENGINE_CONFIGURATION_PREFIXES) {
+                if (entry.getKey().startsWith(prefix)) {
+                    key.put(entry.getKey(), entry.getValue());
+                    break;
+                }
+            }
+        }
+        return key;
+    }
+}
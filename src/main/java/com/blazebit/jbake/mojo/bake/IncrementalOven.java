@@ -0,0 +1,1843 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import com.blazebit.jbake.mojo.watcher.ChangeSet;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.jbake.app.ContentStore;
+import org.jbake.app.Crawler;
+import org.jbake.app.DBUtil;
+import org.jbake.app.DocumentList;
+import org.jbake.app.FileUtil;
+import org.jbake.app.Parser;
+import org.jbake.app.Renderer;
+import org.jbake.app.Utensils;
+import org.jbake.app.configuration.DefaultJBakeConfiguration;
+import org.jbake.app.configuration.JBakeConfiguration;
+import org.jbake.app.configuration.JBakeConfigurationInspector;
+import org.jbake.model.DocumentAttributes;
+import org.jbake.model.DocumentTypes;
+import org.jbake.parser.Engines;
+import org.jbake.render.DocumentsRenderer;
+import org.jbake.render.RenderingTool;
+import org.jbake.template.DelegatingTemplateEngine;
+import org.jbake.template.ModelExtractors;
+import org.jbake.template.ModelExtractorsDocumentTypeListener;
+import org.jbake.template.RenderingException;
+import org.jbake.util.HtmlUtil;
+import org.jbake.util.PagingHelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A replacement for the JBake {@link org.jbake.app.Oven} that keeps the content store open between bakes.
+ * This allows to re-bake only the documents and assets that are affected by a {@link ChangeSet}
+ * instead of crawling and rendering the whole site again.
+ *
+ * @author Christian Beikov
+ */
+public class IncrementalOven {
+
+    private static final Logger LOG = Logger.getLogger(IncrementalOven.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // Attributes that change whenever a document is parsed and thus don't contribute to the header
+    private static final List<String> VOLATILE_ATTRIBUTES = Arrays.asList(
+            Crawler.Attributes.BODY, "docdate", "docdatetime", "doctime", "docyear", "localdate", "localdatetime", "localtime", "localyear"
+    );
+    // Prefixes of the configuration keys that JBake reads while crawling or that determine the engines and the output layout
+    private static final String[] STRUCTURAL_CONFIGURATION_PREFIXES = {
+        "archive.", "asciidoctor.", "asset.", "content.", "date.", "db.", "default.", "destination.", "draft.", "feed.", "header.",
+        "img.", "index.", "markdown.", "output.", "render.", "server.", "site.host", "sitemap.", "tag.", "template.", "thymeleaf.",
+        "uri.", "sourceFolder", "destinationFolder", "assetFolder", "templateFolder", "contentFolder"
+    };
+    // The document types and model extractors of JBake are JVM-wide, so ovens of different sites register them under this lock
+    private static final Object REGISTRY_LOCK = new Object();
+    // The number of documents per parser thread that are parsed ahead of storing
+    private static final int PARSE_AHEAD_PER_THREAD = 4;
+    // The initial capacity of the buffer pages are rendered into, which fits most pages without growing
+    private static final int RENDER_BUFFER_SIZE = 16 * 1024;
+    // Guarded by REGISTRY_LOCK
+    private static int startedOvens;
+
+    private final Utensils utensils;
+    private final JBakeConfiguration config;
+    private final Parser parser;
+    private final int threads;
+    private final EnginePool enginePool;
+    // Absolute source file path to document uri of all crawled documents
+    private final NavigableMap<String, String> sourceUris = new TreeMap<String, String>();
+    // Absolute source file path to the header of the document i.e. everything except the body
+    private final Map<String, String> headers = new HashMap<String, String>();
+    // Absolute source file path to the output files rendered during the last bake
+    private final Map<String, Set<File>> outputs = new HashMap<String, Set<File>>();
+    private final List<Throwable> errors = new ArrayList<Throwable>();
+    private final OutputWriter outputWriter = new OutputWriter();
+    // Output files of the overview pages that were rendered during the last bake or null if they weren't rendered
+    private Set<File> generatedOutputs;
+    // Output files that were written or deleted during the last bake or null if the whole site was baked
+    private Set<File> changedOutputs = new LinkedHashSet<File>();
+    private DocumentCache documentCache;
+    private ExecutorService executorService;
+    // Whether a document was added, removed or got a new header which might be shown on every page, kept until the pages are rendered
+    private boolean listingChanged;
+    // The tags before the last bake of changes that wasn't finished
+    private Set<String> previousTags;
+    // Whether the configuration changed in a way that requires every page to be rendered again
+    private boolean renderAll;
+    private boolean started;
+    private int renderedCount;
+    private boolean linkAssets;
+    private boolean streaming;
+    private boolean measureAllocations;
+    private BakeMetrics metrics = new BakeMetrics();
+    // Set by other threads to stop a bake at the next file boundary
+    private AtomicBoolean cancelled = new AtomicBoolean();
+    // Whether rendering was cancelled, so documents and overview pages still have to be rendered
+    private boolean renderPending;
+    // Documents that the renderer skipped because the bake was cancelled
+    private final List<Map<String, Object>> skippedDocuments = new ArrayList<Map<String, Object>>();
+    // Which documents and overview pages depend on which templates and included files
+    private DependencyGraph dependencies = new DependencyGraph();
+    // Absolute paths of content files whose includes changed, so they are parsed again even if the document cache has them
+    private final Set<String> staleSources = new HashSet<String>();
+    // Absolute path of every known content file to the hash of its content
+    private final Map<String, String> sourceHashes = new HashMap<String, String>();
+    private BuildCache buildCache;
+    // Hash of the configuration, the templates and the headers of all documents, which is part of the keys of document pages
+    private String documentPagesKey;
+    // Hash of the configuration, the templates and all sources, which is part of the keys of overview pages
+    private String overviewPagesKey;
+    // Hashes of the included files and templates during the current rendering
+    private final Map<Path, String> dependencyHashes = new HashMap<Path, String>();
+
+    public IncrementalOven(JBakeConfiguration config) {
+        this(config, 1);
+    }
+
+    /**
+     * Creates an oven that parses content files with the given number of threads.
+     * Storing and rendering of documents always happens on the calling thread as the content store is bound to it.
+     *
+     * @param config The configuration
+     * @param threads The number of threads for parsing
+     */
+    public IncrementalOven(JBakeConfiguration config, int threads) {
+        this(config, threads, null);
+    }
+
+    /**
+     * Creates an oven that parses content files with the given number of threads and takes the template engines from
+     * the given pool. The configuration should be obtained through {@link EnginePool#getConfiguration(JBakeConfiguration)}.
+     *
+     * @param config The configuration
+     * @param threads The number of threads for parsing
+     * @param enginePool The engine pool or <code>null</code> to create the template engines for this oven only
+     */
+    public IncrementalOven(JBakeConfiguration config, int threads, EnginePool enginePool) {
+        new JBakeConfigurationInspector(config).inspect();
+        ContentStore contentStore = enginePool == null ? DBUtil.createDataStore(config) : enginePool.getContentStore(config);
+        this.utensils = new Utensils();
+        this.utensils.setConfiguration(config);
+        this.utensils.setContentStore(contentStore);
+        this.utensils.setCrawler(new Crawler(contentStore, config));
+        if (enginePool == null) {
+            this.utensils.setRenderer(new TrackingRenderer(contentStore, config));
+        }
+        this.config = config;
+        this.enginePool = enginePool;
+        this.parser = new Parser(config);
+        this.threads = threads;
+    }
+
+    /**
+     * Crawls the whole content folder and renders all new or updated documents and copies all assets.
+     */
+    public void bake() {
+        reset();
+        start();
+
+        long start = System.nanoTime();
+        ContentStore contentStore = utensils.getContentStore();
+        contentStore.updateAndClearCacheIfNeeded(config.getClearCache(), config.getTemplateFolder());
+        metrics.end(BakeMetrics.Phase.STORE, start);
+
+        Set<String> previousSources = new HashSet<String>(sourceUris.keySet());
+        crawl(config.getContentFolder(), Collections.<String>emptySet());
+        previousSources.removeAll(sourceUris.keySet());
+        start = System.nanoTime();
+        for (String removedSource : previousSources) {
+            deleteDocument(new File(removedSource));
+        }
+        metrics.end(BakeMetrics.Phase.STORE, start);
+
+        renderContent();
+        deleteTagOutputs();
+        previousTags = null;
+
+        start = System.nanoTime();
+        copyAssets(config.getAssetFolder(), config.getDestinationFolder(), new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                // Same as the filter of the JBake asset copying
+                if (config.getAssetIgnoreHidden() && file.isHidden()) {
+                    return false;
+                }
+                return file.isFile() || FileUtil.directoryOnlyIfNotIgnored(file);
+            }
+        });
+        copyAssets(config.getContentFolder(), config.getDestinationFolder(), FileUtil.getNotContentFileFilter());
+        metrics.end(BakeMetrics.Phase.ASSETS, start);
+        changedOutputs = null;
+    }
+
+    /**
+     * Bakes only the given changes. Content files are re-crawled and rendered along with the overview pages
+     * like index, tags, archive and feed. Assets are copied and outputs of deleted sources are removed.
+     * Documents and overview pages that depend on a changed template or included file are rendered again, content files
+     * that include a changed file are also parsed again. Falls back to a full bake if a template changed that nothing is
+     * known to depend on.
+     *
+     * @param changes The changed paths
+     */
+    public void bake(ChangeSet changes) {
+        reset();
+        start();
+        if (changes.isEmpty() && !renderAll && !renderPending && !listingChanged) {
+            return;
+        }
+
+        try {
+            bakeChanges(changes);
+        } catch (BakeCancelledException ex) {
+            // The store might already contain changes that a retry doesn't see anymore, e.g. deleted documents
+            renderPending = true;
+            throw ex;
+        }
+    }
+
+    private void bakeChanges(ChangeSet changes) {
+        ChangeClassifier classifier = new ChangeClassifier(config);
+        Set<Path> changedTemplates = new LinkedHashSet<Path>();
+        Set<Path> dependentSources = new LinkedHashSet<Path>();
+        for (Path path : changes.getChanges().keySet()) {
+            Set<Path> dependents = dependencies.getDependents(path);
+            boolean template = classifier.classify(path) == ChangeClassifier.Category.TEMPLATE;
+            if (template) {
+                if (dependents.isEmpty()) {
+                    LOG.fine("Change of template " + path + " without known dependents detected, doing a full bake");
+                    refreshTemplateEngine();
+                    bake();
+                    return;
+                }
+                changedTemplates.add(normalize(path));
+            }
+            for (Path dependent : dependents) {
+                if (isSource(dependent, classifier)) {
+                    dependentSources.add(dependent);
+                    // A changed template only requires rendering, a changed include also requires parsing
+                    if (!template) {
+                        staleSources.add(dependent.toFile().getAbsolutePath());
+                    }
+                }
+            }
+        }
+
+        // Documents with includes that couldn't be resolved might depend on any of the changed files
+        for (Path dependent : dependencies.getUnresolvedDependents()) {
+            if (isSource(dependent, classifier)) {
+                dependentSources.add(dependent);
+                staleSources.add(dependent.toFile().getAbsolutePath());
+            }
+        }
+
+        boolean dependentsChanged = !dependentSources.isEmpty();
+        if (!changedTemplates.isEmpty()) {
+            LOG.fine("Template change detected, rendering " + dependentSources.size() + " dependent document(s) and the overview pages");
+            refreshTemplateEngine();
+            rescanTemplates(changedTemplates);
+            long start = System.nanoTime();
+            for (Path dependent : dependentSources) {
+                String uri = sourceUris.get(dependent.toFile().getAbsolutePath());
+                if (uri != null) {
+                    markUnrendered(uri);
+                }
+            }
+            metrics.end(BakeMetrics.Phase.STORE, start);
+            // Overview pages might be the only dependents, they are rendered along with the documents
+            dependentsChanged = true;
+        }
+
+        if (!renderAll && !renderPending && !listingChanged && !dependentsChanged && isAssetsOnly(changes, classifier)) {
+            copyAssets(changes);
+            return;
+        }
+
+        boolean contentChanged = false;
+        // Tags that a cancelled bake already removed from the store are known from before that bake
+        if (previousTags == null) {
+            previousTags = utensils.getContentStore().getAllTags();
+        }
+
+        for (Map.Entry<Path, ChangeSet.Kind> entry : changes.getChanges().entrySet()) {
+            checkCancelled();
+            Path path = normalize(entry.getKey());
+            File file = path.toFile();
+            ChangeClassifier.Category category = classifier.classify(path);
+            boolean inContent = category == ChangeClassifier.Category.CONTENT;
+            if (!inContent && category != ChangeClassifier.Category.ASSET) {
+                LOG.log(Level.FINE, "Ignoring change to non-site file: " + path);
+                continue;
+            }
+
+            if (entry.getValue() == ChangeSet.Kind.DELETED) {
+                if (inContent) {
+                    contentChanged |= deleteDocuments(file);
+                }
+                if (!inContent || !isContentFile(file)) {
+                    deleteAsset(file);
+                }
+            } else if (file.isDirectory()) {
+                for (File child : listFiles(file)) {
+                    checkCancelled();
+                    if (isContentFile(child)) {
+                        contentChanged |= crawlFile(child, true);
+                    } else if (!inContent || FileUtil.getNotContentFileFilter().accept(child)) {
+                        copyAsset(child);
+                    }
+                }
+            } else if (file.isFile()) {
+                if (inContent && isContentFile(file)) {
+                    contentChanged |= crawlFile(file, true);
+                } else {
+                    copyAsset(file);
+                }
+            }
+        }
+
+        // Documents that include a changed file are parsed again unless the change itself already did that
+        for (Path dependent : dependentSources) {
+            checkCancelled();
+            File file = dependent.toFile();
+            if (staleSources.contains(file.getAbsolutePath()) && file.isFile()) {
+                contentChanged |= crawlFile(file, true);
+            }
+        }
+
+        boolean renderedAll = renderAll;
+        if (contentChanged || dependentsChanged || listingChanged || renderAll || renderPending) {
+            renderContent();
+            deleteTagOutputs();
+        }
+        previousTags = null;
+        if (renderedAll) {
+            changedOutputs = null;
+        }
+    }
+
+    /**
+     * Copies or deletes the given changed assets without parsing or rendering anything.
+     * Changes that aren't part of the asset folder are ignored.
+     *
+     * @param changes The changed paths
+     */
+    public void copyAssets(ChangeSet changes) {
+        reset();
+        ChangeClassifier classifier = new ChangeClassifier(config);
+        for (Map.Entry<Path, ChangeSet.Kind> entry : changes.getChanges().entrySet()) {
+            checkCancelled();
+            Path path = normalize(entry.getKey());
+            File file = path.toFile();
+            if (classifier.classify(path) != ChangeClassifier.Category.ASSET) {
+                LOG.log(Level.FINE, "Ignoring change to non-asset file: " + path);
+            } else if (entry.getValue() == ChangeSet.Kind.DELETED) {
+                deleteAsset(file);
+            } else if (file.isDirectory()) {
+                for (File child : listFiles(file)) {
+                    checkCancelled();
+                    copyAsset(child);
+                }
+            } else if (file.isFile()) {
+                copyAsset(file);
+            }
+        }
+    }
+
+    /**
+     * Sets whether assets should be hard linked into the destination folder instead of being copied.
+     * Assets are copied if linking isn't supported, e.g. because the folders are on different file systems.
+     *
+     * @param linkAssets Whether to link assets
+     */
+    public void setLinkAssets(boolean linkAssets) {
+        this.linkAssets = linkAssets;
+    }
+
+    /**
+     * Sets whether documents should be rendered one at a time instead of loading all unrendered documents at once,
+     * which keeps the memory that rendering needs independent of the size of the site. This is best combined with
+     * a content store on disk, as the in-memory store holds every document anyway.
+     *
+     * @param streaming Whether to stream documents through the renderer
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    /**
+     * Sets whether the metrics of a bake measure the bytes that the baking thread and the parser and output threads allocate.
+     *
+     * @param measureAllocations Whether to measure allocations
+     */
+    public void setMeasureAllocations(boolean measureAllocations) {
+        this.measureAllocations = measureAllocations;
+    }
+
+    /**
+     * Sets the cache from which rendered pages are restored instead of rendering them and which receives all rendered pages.
+     * Pages are identified by hashes of the configuration, the templates, the document headers and the sources they depend on,
+     * with the absolute paths of the source and destination folder left out so that pages are shared between working copies.
+     * The oven doesn't close the cache.
+     *
+     * @param buildCache The build cache or <code>null</code>
+     */
+    public void setBuildCache(BuildCache buildCache) {
+        this.buildCache = buildCache;
+    }
+
+    /**
+     * Shares the flag through which other threads cancel a running bake. The bake stops at the next file boundary
+     * and throws a {@link BakeCancelledException}. The flag is never reset by the oven.
+     *
+     * @param cancelled The cancellation flag
+     */
+    public void setCancellation(AtomicBoolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    void checkCancelled() {
+        if (cancelled.get()) {
+            throw new BakeCancelledException();
+        }
+    }
+
+    /**
+     * Applies the given configuration to this oven if only values changed that are read while rendering,
+     * like custom properties used by templates. This avoids initializing the template engines and Asciidoctor again.
+     * Every page is rendered again during the next bake.
+     *
+     * @param newConfig The changed configuration
+     * @return true if the configuration was applied, false if values changed that require a new oven
+     */
+    public boolean reconfigure(JBakeConfiguration newConfig) {
+        if (!(config instanceof DefaultJBakeConfiguration) || !(newConfig instanceof DefaultJBakeConfiguration)) {
+            return false;
+        }
+
+        Map<String, String> previousValues = BakeIndex.flattenConfiguration(config);
+        Map<String, String> currentValues = BakeIndex.flattenConfiguration(newConfig);
+        Set<String> keys = new HashSet<String>(previousValues.keySet());
+        keys.addAll(currentValues.keySet());
+        boolean changed = false;
+        for (String key : keys) {
+            String previousValue = previousValues.get(key);
+            String currentValue = currentValues.get(key);
+            if (previousValue == null ? currentValue == null : previousValue.equals(currentValue)) {
+                continue;
+            }
+            if (!isRenderOnly(key, previousValue, currentValue)) {
+                LOG.fine("Configuration key " + key + " can't be changed in place");
+                return false;
+            }
+            changed = true;
+        }
+
+        // All components share the configuration object, so swapping its values reconfigures them in place
+        ((DefaultJBakeConfiguration) config).setCompositeConfiguration(((DefaultJBakeConfiguration) newConfig).getCompositeConfiguration());
+        renderAll |= changed;
+        return true;
+    }
+
+    private static boolean isRenderOnly(String key, String previousValue, String currentValue) {
+        if (key.startsWith("template.") && key.endsWith(".file")) {
+            // The document types are derived from the template keys, so only the template of a known type may change
+            return previousValue != null && currentValue != null;
+        }
+        for (String prefix : STRUCTURAL_CONFIGURATION_PREFIXES) {
+            if (key.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Populates the empty content store with all documents, preferably from the document cache, and bakes the given changes.
+     * Documents that are loaded from the cache and aren't part of the changes are considered to be rendered already.
+     * In contrast to {@link #bake(ChangeSet)}, outputs of deleted content files must be removed by the caller.
+     *
+     * @param changes The changed paths since the documents were cached
+     */
+    public void restore(ChangeSet changes) {
+        reset();
+        start();
+
+        ChangeClassifier classifier = new ChangeClassifier(config);
+        Path contentFolder = normalize(config.getContentFolder());
+        Path assetFolder = normalize(config.getAssetFolder());
+        Set<String> changedSources = new HashSet<String>();
+        Set<Path> changedTemplates = new LinkedHashSet<Path>();
+        boolean contentChanged = false;
+        for (Map.Entry<Path, ChangeSet.Kind> entry : changes.getChanges().entrySet()) {
+            Path path = normalize(entry.getKey());
+            File file = path.toFile();
+            boolean template = classifier.classify(path) == ChangeClassifier.Category.TEMPLATE;
+            if (template) {
+                changedTemplates.add(path);
+            }
+            for (Path dependent : dependencies.getDependents(path)) {
+                if (isSource(dependent, classifier)) {
+                    String source = dependent.toFile().getAbsolutePath();
+                    changedSources.add(source);
+                    if (!template) {
+                        staleSources.add(source);
+                    }
+                }
+                // Overview pages are rendered along with the documents
+                contentChanged = true;
+            }
+            boolean inContent = path.startsWith(contentFolder);
+            if (!inContent && !path.startsWith(assetFolder)) {
+                continue;
+            }
+
+            if (inContent && isContentFile(file)) {
+                contentChanged = true;
+                if (entry.getValue() == ChangeSet.Kind.DELETED) {
+                    listingChanged = true;
+                    if (documentCache != null) {
+                        documentCache.remove(file);
+                    }
+                } else {
+                    changedSources.add(file.getAbsolutePath());
+                }
+            } else if (entry.getValue() == ChangeSet.Kind.DELETED) {
+                deleteAsset(file);
+            } else if (file.isFile()) {
+                copyAsset(file);
+            }
+        }
+
+        for (Path dependent : dependencies.getUnresolvedDependents()) {
+            if (isSource(dependent, classifier)) {
+                String source = dependent.toFile().getAbsolutePath();
+                changedSources.add(source);
+                staleSources.add(source);
+                contentChanged = true;
+            }
+        }
+
+        rescanTemplates(changedTemplates);
+        crawl(config.getContentFolder(), changedSources);
+        if (contentChanged) {
+            renderContent();
+        }
+    }
+
+    /**
+     * Removes all documents from the content store so that the next bake processes every source.
+     */
+    public void clear() {
+        start();
+        utensils.getContentStore().updateAndClearCacheIfNeeded(true, config.getTemplateFolder());
+        sourceUris.clear();
+        sourceHashes.clear();
+        headers.clear();
+    }
+
+    /**
+     * Returns the output files of the documents that were rendered during the last bake by source file.
+     *
+     * @return The rendered output files by absolute source file path
+     */
+    public Map<String, Set<File>> getOutputs() {
+        return outputs;
+    }
+
+    /**
+     * Returns the output files of the overview pages that depend on the tags of all documents.
+     *
+     * @return The output files or <code>null</code> if the overview pages weren't rendered during the last bake
+     */
+    public Set<File> getGeneratedOutputs() {
+        return generatedOutputs;
+    }
+
+    /**
+     * Returns the output files that were written or deleted during the last bake.
+     *
+     * @return The output files or <code>null</code> if the whole site was baked
+     */
+    public Set<File> getChangedOutputs() {
+        return changedOutputs;
+    }
+
+    /**
+     * Sets the cache that is consulted before parsing a content file and that receives all parsed documents.
+     *
+     * @param documentCache The document cache or <code>null</code>
+     */
+    public void setDocumentCache(DocumentCache documentCache) {
+        this.documentCache = documentCache;
+    }
+
+    /**
+     * Returns the graph of the templates and included files that documents and overview pages depend on.
+     * It is updated while baking and may be queried by other threads.
+     *
+     * @return The dependency graph
+     */
+    public DependencyGraph getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Sets the dependency graph, e.g. one that was saved by a previous build. Must be called before baking.
+     *
+     * @param dependencies The dependency graph
+     */
+    public void setDependencies(DependencyGraph dependencies) {
+        this.dependencies = dependencies;
+    }
+
+    public List<Throwable> getErrors() {
+        return new ArrayList<Throwable>(errors);
+    }
+
+    public int getRenderedCount() {
+        return renderedCount;
+    }
+
+    /**
+     * Returns the timings and file counts of the last bake. The total time and the JVM deltas are taken on the first call.
+     *
+     * @return The metrics
+     */
+    public BakeMetrics getMetrics() {
+        metrics.set(BakeMetrics.Count.RENDERED_PAGES, renderedCount);
+        metrics.stop(errors.size());
+        return metrics;
+    }
+
+    public JBakeConfiguration getConfiguration() {
+        return config;
+    }
+
+    public void close() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+        outputWriter.close();
+        if (started) {
+            started = false;
+            synchronized (REGISTRY_LOCK) {
+                startedOvens--;
+            }
+            sourceUris.clear();
+            sourceHashes.clear();
+            headers.clear();
+            ContentStore contentStore = utensils.getContentStore();
+            contentStore.close();
+            contentStore.shutdown();
+        }
+    }
+
+    private void reset() {
+        errors.clear();
+        outputs.clear();
+        generatedOutputs = null;
+        changedOutputs = new LinkedHashSet<File>();
+        skippedDocuments.clear();
+        staleSources.clear();
+        renderedCount = 0;
+        metrics = new BakeMetrics(measureAllocations);
+        metrics.start();
+    }
+
+    private void start() {
+        if (started) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        ContentStore contentStore = utensils.getContentStore();
+        synchronized (REGISTRY_LOCK) {
+            // Starting a store also starts OrientDB and creates the schema for the registered document types
+            contentStore.startup();
+        }
+        // A bake that was killed might have left temporary files behind which would otherwise be published
+        outputWriter.deleteTempFiles(config.getDestinationFolder());
+        // The pooled template engines are taken as late as possible so that a warm up can finish in the meantime
+        createRenderer();
+        synchronized (REGISTRY_LOCK) {
+            // Document types of other running ovens must stay registered, so types are only removed if this is the only oven
+            if (startedOvens == 0) {
+                DocumentTypes.resetDocumentTypes();
+                ModelExtractors.getInstance().reset();
+            }
+            DocumentTypes.addListener(new ModelExtractorsDocumentTypeListener());
+            for (String docType : config.getDocumentTypes()) {
+                DocumentTypes.addDocumentType(docType);
+            }
+            contentStore.updateSchema();
+            startedOvens++;
+        }
+        started = true;
+        metrics.end(BakeMetrics.Phase.SETUP, start);
+    }
+
+    private void refreshTemplateEngine() {
+        // Template engines like Freemarker cache templates for a few seconds, so fresh engines are needed
+        if (enginePool == null) {
+            utensils.setRenderer(new TrackingRenderer(utensils.getContentStore(), config));
+        } else {
+            enginePool.invalidateTemplateEngine();
+            utensils.setRenderer(null);
+            createRenderer();
+        }
+    }
+
+    /**
+     * Updates the templates that the given changed templates include.
+     */
+    private void rescanTemplates(Set<Path> templates) {
+        Path templateFolder = normalize(config.getTemplateFolder());
+        for (Path template : templates) {
+            if (Files.isRegularFile(template)) {
+                dependencies.scanTemplate(template, templateFolder);
+            } else {
+                dependencies.remove(template);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the dependent of a changed file is a content file rather than a template or an overview page.
+     */
+    private boolean isSource(Path dependent, ChangeClassifier classifier) {
+        return classifier.classify(dependent) == ChangeClassifier.Category.CONTENT && isContentFile(dependent.toFile());
+    }
+
+    /**
+     * Returns whether the source file includes files that couldn't be resolved, so that neither the document cache
+     * nor the build cache can tell whether its document is up to date.
+     */
+    private boolean hasUnresolvedIncludes(File sourceFile) {
+        for (Path dependency : dependencies.getDependencies(sourceFile.toPath())) {
+            if (DependencyScanner.isUnresolved(dependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Records that the document of the given source file depends on the template of its type and on the given included files.
+     */
+    private void recordDependencies(File sourceFile, String docType, Set<Path> includes) {
+        Path source = sourceFile.toPath();
+        dependencies.setDependencies(source, includes);
+        File template = config.getTemplateFileByDocType(docType);
+        if (template != null) {
+            dependencies.addTemplate(source, template.toPath(), config.getTemplateFolder().toPath());
+        }
+    }
+
+    private void createRenderer() {
+        if (utensils.getRenderer() == null) {
+            ContentStore contentStore = utensils.getContentStore();
+            utensils.setRenderer(new TrackingRenderer(contentStore, config, enginePool.getTemplateEngine(contentStore, config)));
+        }
+    }
+
+    private static boolean isAssetsOnly(ChangeSet changes, ChangeClassifier classifier) {
+        for (Path path : changes.getChanges().keySet()) {
+            if (classifier.classify(path) != ChangeClassifier.Category.ASSET) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void renderContent() {
+        checkCancelled();
+        Renderer renderer = utensils.getRenderer();
+        ContentStore contentStore = utensils.getContentStore();
+        renderPending = false;
+        if (listingChanged || renderAll) {
+            // Templates usually list other documents, so every page has to be rendered again
+            long start = System.nanoTime();
+            markAllUnrendered();
+            metrics.end(BakeMetrics.Phase.STORE, start);
+            renderAll = false;
+            listingChanged = false;
+        }
+        long start = System.nanoTime();
+        if (buildCache != null) {
+            computeBuildCacheKeys();
+        }
+        for (RenderingTool tool : ServiceLoader.load(RenderingTool.class)) {
+            if (streaming && tool instanceof DocumentsRenderer) {
+                tool = new StreamingDocumentsRenderer(cancelled);
+            }
+            try {
+                renderedCount += tool.render(renderer, contentStore, config);
+            } catch (RenderingException ex) {
+                errors.add(ex);
+            }
+        }
+        awaitOutputs();
+        metrics.end(BakeMetrics.Phase.RENDER, start);
+        if (cancelled.get()) {
+            // JBake marks all documents as rendered, including the ones the renderer skipped
+            start = System.nanoTime();
+            for (Map<String, Object> document : skippedDocuments) {
+                markUnrendered(document, (String) document.get(Crawler.Attributes.TYPE));
+            }
+            skippedDocuments.clear();
+            metrics.end(BakeMetrics.Phase.STORE, start);
+            renderPending = true;
+            throw new BakeCancelledException();
+        }
+
+        generatedOutputs = new LinkedHashSet<File>();
+        if (config.getRenderTags()) {
+            for (String tag : contentStore.getAllTags()) {
+                generatedOutputs.add(getTagOutputFile(tag));
+            }
+        }
+    }
+
+    /**
+     * Computes the parts of the build cache keys that all document pages and all overview pages have in common.
+     * Document pages depend on the headers of all documents, as templates usually list other documents, but only on their own body.
+     * Overview pages like feeds may show the bodies of all documents.
+     */
+    private void computeBuildCacheKeys() {
+        dependencyHashes.clear();
+        StringBuilder site = new StringBuilder();
+        for (Map.Entry<String, String> entry : BakeIndex.flattenConfiguration(config).entrySet()) {
+            // The kind and location of the content store doesn't influence the pages
+            if (!entry.getKey().startsWith("db.")) {
+                site.append(entry.getKey()).append('=').append(toPortable(entry.getValue())).append('\n');
+            }
+        }
+        site.append(BakeIndex.hashDirectory(config.getTemplateFolder())).append('\n');
+
+        StringBuilder listing = new StringBuilder(site);
+        StringBuilder sources = new StringBuilder(site);
+        for (String source : sourceUris.keySet()) {
+            File sourceFile = new File(source);
+            String name = toPortable(source);
+            String header = headers.get(source);
+            listing.append(name).append('\n').append(header == null ? "" : toPortable(header)).append('\n');
+            sources.append(name).append('\n').append(sourceHashes.get(source)).append('\n').append(getDependencyHash(sourceFile)).append('\n');
+        }
+        documentPagesKey = BakeIndex.hash(listing.toString().getBytes(UTF_8));
+        // Overview pages may show the bodies of documents that depend on unknown files
+        overviewPagesKey = dependencies.getUnresolvedDependents().isEmpty() ? BakeIndex.hash(sources.toString().getBytes(UTF_8)) : null;
+    }
+
+    /**
+     * Returns the build cache key of the page that is rendered for the given source file.
+     *
+     * @return The key or <code>null</code> if the page must not be cached
+     */
+    private String getDocumentPageKey(File sourceFile, String sha1, File outputFile) {
+        if (hasUnresolvedIncludes(sourceFile)) {
+            return null;
+        }
+        String key = documentPagesKey + '\n' + toPortable(sourceFile.getAbsolutePath()) + '\n' + sha1 + '\n'
+                + getDependencyHash(sourceFile) + '\n' + toPortable(outputFile.getAbsolutePath());
+        return BakeIndex.hash(key.getBytes(UTF_8));
+    }
+
+    /**
+     * Returns the build cache key of the given output of an overview page.
+     *
+     * @return The key or <code>null</code> if the page must not be cached
+     */
+    private String getOverviewPageKey(File outputFile) {
+        if (overviewPagesKey == null) {
+            return null;
+        }
+        String key = overviewPagesKey + '\n' + toPortable(outputFile.getAbsolutePath());
+        return BakeIndex.hash(key.getBytes(UTF_8));
+    }
+
+    /**
+     * Returns a hash of the names and contents of the files the given source file includes and of its template.
+     */
+    private String getDependencyHash(File sourceFile) {
+        StringBuilder sb = new StringBuilder();
+        for (Path dependency : dependencies.getDependencies(sourceFile.toPath())) {
+            String hash = dependencyHashes.get(dependency);
+            if (hash == null) {
+                hash = Files.isRegularFile(dependency) ? BakeIndex.hashFile(dependency.toFile()) : "";
+                dependencyHashes.put(dependency, hash);
+            }
+            sb.append(toPortable(dependency.toString())).append('=').append(hash).append('\n');
+        }
+        return BakeIndex.hash(sb.toString().getBytes(UTF_8));
+    }
+
+    /**
+     * Replaces the absolute paths of the source and destination folder in the given value, so that it is the same in every working copy.
+     */
+    private String toPortable(String value) {
+        return value.replace(config.getSourceFolder().getAbsolutePath(), "${sourceFolder}")
+                .replace(config.getDestinationFolder().getAbsolutePath(), "${destinationFolder}");
+    }
+
+    private void awaitOutputs() {
+        OutputWriter.Result result = outputWriter.await();
+        // Identical outputs kept their modification time, so nothing has to pick them up
+        changedOutputs.removeAll(result.getUnchanged());
+        errors.addAll(result.getErrors());
+        metrics.add(BakeMetrics.Count.WRITTEN_OUTPUTS, result.getWritten().size());
+        metrics.add(BakeMetrics.Count.UNCHANGED_OUTPUTS, result.getUnchanged().size());
+    }
+
+    private void markAllUnrendered() {
+        ContentStore contentStore = utensils.getContentStore();
+        String renderedAttribute = String.valueOf(DocumentAttributes.RENDERED);
+        for (String docType : DocumentTypes.getDocumentTypes()) {
+            for (Map<String, Object> document : contentStore.getAllContent(docType)) {
+                if (!Boolean.FALSE.equals(document.get(renderedAttribute))) {
+                    markUnrendered(document, docType);
+                }
+            }
+        }
+    }
+
+    private void markUnrendered(String uri) {
+        ContentStore contentStore = utensils.getContentStore();
+        for (String docType : DocumentTypes.getDocumentTypes()) {
+            if (!contentStore.getDocumentStatus(docType, uri).isEmpty()) {
+                markUnrendered(uri, docType);
+            }
+        }
+    }
+
+    private void markUnrendered(Map<String, Object> document, String docType) {
+        markUnrendered((String) document.get(String.valueOf(DocumentAttributes.SOURCE_URI)), docType);
+    }
+
+    private void markUnrendered(String uri, String docType) {
+        Map<String, Object> update = new HashMap<String, Object>();
+        update.put(String.valueOf(DocumentAttributes.SOURCE_URI), uri);
+        update.put(Crawler.Attributes.TYPE, docType);
+        update.put(String.valueOf(DocumentAttributes.RENDERED), false);
+        utensils.getContentStore().mergeDocument(update).save();
+    }
+
+    private void crawl(File directory, Set<String> changedSources) {
+        long start = System.nanoTime();
+        List<File> sourceFiles = new ArrayList<File>();
+        collectSourceFiles(directory, sourceFiles);
+
+        List<CrawlTask> tasks = new ArrayList<CrawlTask>(sourceFiles.size());
+        for (File sourceFile : sourceFiles) {
+            checkCancelled();
+            CrawlTask task = prepare(sourceFile, changedSources.contains(sourceFile.getAbsolutePath()));
+            if (task != null) {
+                tasks.add(task);
+            }
+        }
+        metrics.end(BakeMetrics.Phase.CRAWL, start);
+
+        parseAndStore(tasks);
+    }
+
+    private void collectSourceFiles(File directory, List<File> sourceFiles) {
+        File[] contents = directory.listFiles(FileUtil.getFileFilter());
+        if (contents != null) {
+            Arrays.sort(contents);
+            for (File sourceFile : contents) {
+                if (sourceFile.isFile()) {
+                    sourceFiles.add(sourceFile);
+                } else if (sourceFile.isDirectory()) {
+                    collectSourceFiles(sourceFile, sourceFiles);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the source file into the content store if it is new or updated.
+     *
+     * @param sourceFile The content file
+     * @param force Whether to process the file even if it is identical to the stored document
+     * @return true if the document was (re-)parsed, false if it is identical
+     */
+    private boolean crawlFile(File sourceFile, boolean force) {
+        long start = System.nanoTime();
+        CrawlTask task = prepare(sourceFile, force);
+        metrics.end(BakeMetrics.Phase.CRAWL, start);
+        if (task == null) {
+            return false;
+        }
+
+        start = System.nanoTime();
+        task.parse();
+        metrics.end(BakeMetrics.Phase.PARSE, start);
+        store(task);
+        return true;
+    }
+
+    /**
+     * Removes the stored documents of the source file if it is new or updated.
+     *
+     * @param sourceFile The content file
+     * @param force Whether to process the file even if it is identical to the stored document
+     * @return The task to parse the file or <code>null</code> if the file is identical to the stored document
+     */
+    private CrawlTask prepare(File sourceFile, boolean force) {
+        metrics.increment(BakeMetrics.Count.CRAWLED_FILES);
+        ContentStore contentStore = utensils.getContentStore();
+        String sha1 = buildHash(sourceFile);
+        String uri = buildUri(sourceFile);
+        boolean stale = staleSources.remove(sourceFile.getAbsolutePath());
+        // Documents with includes that couldn't be resolved are parsed on every bake
+        stale |= hasUnresolvedIncludes(sourceFile);
+        force |= stale;
+
+        for (String docType : DocumentTypes.getDocumentTypes()) {
+            DocumentList match = contentStore.getDocumentStatus(docType, uri);
+            if (!match.isEmpty()) {
+                Map<String, Object> entries = match.get(0);
+                String oldHash = (String) entries.get(String.valueOf(DocumentAttributes.SHA1));
+                if (!force && oldHash.equals(sha1) && !Boolean.FALSE.equals(entries.get(String.valueOf(DocumentAttributes.RENDERED)))) {
+                    sourceUris.put(sourceFile.getAbsolutePath(), uri);
+                    sourceHashes.put(sourceFile.getAbsolutePath(), sha1);
+                    // A persistent content store might have the document from a previous run which didn't record the dependencies
+                    if (!dependencies.contains(sourceFile.toPath())) {
+                        recordDependencies(sourceFile, docType, DependencyScanner.scanIncludes(sourceFile.toPath()));
+                    }
+                    return null;
+                }
+                contentStore.deleteContent(docType, uri);
+            }
+        }
+
+        sourceUris.put(sourceFile.getAbsolutePath(), uri);
+        sourceHashes.put(sourceFile.getAbsolutePath(), sha1);
+        LOG.log(Level.FINE, "Processing [" + sourceFile.getPath() + "]");
+        return new CrawlTask(sourceFile, sha1, uri, force, stale);
+    }
+
+    /**
+     * Parses the source files of the given tasks, concurrently if multiple threads are configured, and stores the documents.
+     * Storing happens in crawl order so that the content store is the same as with a serial bake. Only a few documents per
+     * thread are parsed ahead of storing, so the parsed documents of a big site are never held in memory at once.
+     */
+    private void parseAndStore(List<CrawlTask> tasks) {
+        if (threads < 2 || tasks.size() < 2) {
+            for (CrawlTask task : tasks) {
+                checkCancelled();
+                long start = System.nanoTime();
+                task.parse();
+                metrics.end(BakeMetrics.Phase.PARSE, start);
+                store(task);
+            }
+            return;
+        }
+
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jbake-parser-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        int parseAhead = threads * PARSE_AHEAD_PER_THREAD;
+        Deque<Future<?>> futures = new ArrayDeque<Future<?>>(parseAhead);
+        int submitted = 0;
+        try {
+            for (CrawlTask task : tasks) {
+                // The parsers wait for the storing once enough documents are parsed ahead
+                while (submitted < tasks.size() && futures.size() < parseAhead) {
+                    futures.add(submit(tasks.get(submitted++)));
+                }
+                long start = System.nanoTime();
+                futures.poll().get();
+                metrics.end(BakeMetrics.Phase.PARSE, start);
+                checkCancelled();
+                store(task);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while parsing content files", ex);
+        } catch (ExecutionException ex) {
+            // Parse errors are recorded in the task, so this is unexpected
+            throw new RuntimeException("Failed parsing content files", ex.getCause());
+        } finally {
+            // Documents that are parsed ahead aren't needed anymore if storing failed or the bake was cancelled
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private Future<?> submit(final CrawlTask task) {
+        final BakeMetrics taskMetrics = metrics;
+        return executorService.submit(new Runnable() {
+            @Override
+            public void run() {
+                // The cancellation is noticed before storing
+                if (!cancelled.get()) {
+                    long allocated = taskMetrics.threadAllocatedBytes();
+                    try {
+                        task.parse();
+                    } finally {
+                        taskMetrics.recordAllocations(allocated);
+                    }
+                }
+            }
+        });
+    }
+
+    private void store(CrawlTask task) {
+        long start = System.nanoTime();
+        File sourceFile = task.sourceFile;
+        String sha1 = task.sha1;
+        String uri = task.uri;
+        try {
+            if (task.error != null) {
+                throw task.error;
+            }
+
+            Map<String, Object> fileContents = task.fileContents;
+            if (task.cached) {
+                metrics.increment(BakeMetrics.Count.CACHED_FILES);
+            } else {
+                metrics.increment(BakeMetrics.Count.PARSED_FILES);
+                metrics.parsed(getMetricsName(sourceFile), FileUtil.fileExt(sourceFile), task.parseNanos);
+            }
+            // A cached document has been rendered by a previous bake unless the caller forces to render it again
+            boolean rendered = task.cached && !task.force;
+            if (!task.cached) {
+                if (fileContents == null) {
+                    LOG.warning(sourceFile + " has an invalid header, it has been ignored!");
+                    return;
+                }
+
+                String previousHeader = headers.get(sourceFile.getAbsolutePath());
+                if (previousHeader == null && documentCache != null) {
+                    Map<String, Object> previousContents = documentCache.get(sourceFile, null);
+                    if (previousContents != null) {
+                        previousHeader = getHeader(previousContents);
+                    }
+                }
+                if (documentCache != null) {
+                    documentCache.put(sourceFile, sha1, fileContents);
+                }
+                String header = getHeader(fileContents);
+                listingChanged |= !header.equals(previousHeader);
+                headers.put(sourceFile.getAbsolutePath(), header);
+            } else {
+                headers.put(sourceFile.getAbsolutePath(), getHeader(fileContents));
+            }
+
+            fileContents.put(Crawler.Attributes.ROOTPATH, FileUtil.getUriPathToContentRoot(config, sourceFile));
+            fileContents.put(String.valueOf(DocumentAttributes.SHA1), sha1);
+            fileContents.put(String.valueOf(DocumentAttributes.RENDERED), rendered);
+            fileContents.put(Crawler.Attributes.FILE, sourceFile.getPath());
+            fileContents.put(String.valueOf(DocumentAttributes.SOURCE_URI), uri);
+            fileContents.put(Crawler.Attributes.URI, uri);
+
+            String documentType = (String) fileContents.get(Crawler.Attributes.TYPE);
+            recordDependencies(sourceFile, documentType, task.includes);
+            Object date = fileContents.get(Crawler.Attributes.DATE);
+            if (Crawler.Attributes.Status.PUBLISHED_DATE.equals(fileContents.get(Crawler.Attributes.STATUS))
+                    && date instanceof Date && new Date().after((Date) date)) {
+                fileContents.put(Crawler.Attributes.STATUS, Crawler.Attributes.Status.PUBLISHED);
+            }
+            if (config.getUriWithoutExtension()) {
+                fileContents.put(Crawler.Attributes.NO_EXTENSION_URI, uri.replace("/index.html", "/"));
+            }
+            if (config.getImgPathUpdate()) {
+                HtmlUtil.fixImageSourceUrls(fileContents, config);
+            }
+
+            ODocument doc = new ODocument(documentType);
+            doc.fromMap(fileContents);
+            Object cached = fileContents.get(String.valueOf(DocumentAttributes.CACHED));
+            doc.field(String.valueOf(DocumentAttributes.CACHED), cached == null || Boolean.valueOf(String.valueOf(cached)));
+            doc.save();
+        } catch (Exception ex) {
+            throw new RuntimeException("Failed crawling file: " + sourceFile.getPath() + " " + ex.getMessage(), ex);
+        } finally {
+            // The store holds the document now
+            task.fileContents = null;
+            metrics.end(BakeMetrics.Phase.STORE, start);
+        }
+    }
+
+    /**
+     * Deletes the documents of the given source file or of all source files within the given directory.
+     *
+     * @param file The deleted file or directory
+     * @return true if a document was deleted
+     */
+    private boolean deleteDocuments(File file) {
+        String path = file.getAbsolutePath();
+        boolean deleted = false;
+        if (sourceUris.containsKey(path)) {
+            deleted = deleteDocument(file);
+        }
+
+        Iterator<String> iter = sourceUris.tailMap(path + File.separatorChar, true).keySet().iterator();
+        List<String> children = new ArrayList<String>();
+        while (iter.hasNext()) {
+            String child = iter.next();
+            if (!child.startsWith(path + File.separatorChar)) {
+                break;
+            }
+            children.add(child);
+        }
+        for (String child : children) {
+            deleted |= deleteDocument(new File(child));
+        }
+        return deleted;
+    }
+
+    private boolean deleteDocument(File sourceFile) {
+        ContentStore contentStore = utensils.getContentStore();
+        headers.remove(sourceFile.getAbsolutePath());
+        dependencies.remove(sourceFile.toPath());
+        String uri = sourceUris.remove(sourceFile.getAbsolutePath());
+        sourceHashes.remove(sourceFile.getAbsolutePath());
+        if (uri == null) {
+            uri = buildUri(sourceFile);
+        }
+
+        boolean deleted = false;
+        for (String docType : DocumentTypes.getDocumentTypes()) {
+            if (!contentStore.getDocumentStatus(docType, uri).isEmpty()) {
+                contentStore.deleteContent(docType, uri);
+                deleteOutput(uri, docType);
+                listingChanged = true;
+                deleted = true;
+            }
+        }
+        return deleted;
+    }
+
+    private void deleteOutput(String uri, String docType) {
+        delete(getOutputFile(uri, docType, false));
+        delete(getOutputFile(uri, docType, true));
+    }
+
+    /**
+     * Returns the output file of a document the same way as the JBake {@link Renderer} determines it.
+     */
+    private File getOutputFile(String uri, String docType, boolean draft) {
+        String outputFilename = config.getDestinationFolder().getPath() + File.separatorChar + uri;
+        if (outputFilename.lastIndexOf('.') > outputFilename.lastIndexOf(File.separatorChar)) {
+            outputFilename = outputFilename.substring(0, outputFilename.lastIndexOf('.'));
+        }
+        if (draft) {
+            outputFilename += config.getDraftSuffix();
+        }
+        return new File(outputFilename + config.getOutputExtensionByDocType(docType));
+    }
+
+    private void deleteTagOutputs() {
+        if (config.getRenderTags() && previousTags != null) {
+            previousTags.removeAll(utensils.getContentStore().getAllTags());
+            for (String tag : previousTags) {
+                delete(getTagOutputFile(tag));
+            }
+        }
+    }
+
+    private File getTagOutputFile(String tag) {
+        return new File(config.getDestinationFolder(), config.getTagPathName() + File.separator + tag + config.getOutputExtension());
+    }
+
+    private void copyAssets(File sourceFolder, File targetFolder, FileFilter filter) {
+        File[] files = sourceFolder.listFiles(filter);
+        if (files != null) {
+            Arrays.sort(files);
+            for (File file : files) {
+                checkCancelled();
+                File target = new File(targetFolder, file.getName());
+                if (file.isFile()) {
+                    copyFile(file, target.toPath());
+                } else if (file.isDirectory()) {
+                    copyAssets(file, target, filter);
+                }
+            }
+        }
+    }
+
+    private void copyAsset(File asset) {
+        long start = System.nanoTime();
+        copyFile(asset, getAssetOutputFile(asset));
+        metrics.end(BakeMetrics.Phase.ASSETS, start);
+    }
+
+    private void copyFile(File source, Path target) {
+        Path sourcePath = source.toPath();
+        try {
+            // Copies keep the modification time, but the precision of file systems differs, so only millis are compared
+            if (Files.isRegularFile(target) && (Files.isSameFile(sourcePath, target)
+                    || Files.size(sourcePath) == Files.size(target)
+                    && Files.getLastModifiedTime(sourcePath).toMillis() == Files.getLastModifiedTime(target).toMillis())) {
+                metrics.increment(BakeMetrics.Count.UNCHANGED_ASSETS);
+                return;
+            }
+
+            Files.createDirectories(target.getParent());
+            if (!linkAssets || !link(sourcePath, target)) {
+                // Replacing unlinks the target first, so a previously linked source is never written to
+                Files.copy(sourcePath, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            }
+            changedOutputs.add(target.toFile());
+            metrics.increment(BakeMetrics.Count.COPIED_ASSETS);
+            LOG.fine("Copied asset " + source);
+        } catch (IOException ex) {
+            errors.add(ex);
+        }
+    }
+
+    private static boolean link(Path source, Path target) {
+        try {
+            Files.deleteIfExists(target);
+            Files.createLink(target, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            LOG.log(Level.FINE, "Could not link " + source + ", copying it instead", ex);
+            return false;
+        }
+    }
+
+    private void deleteAsset(File asset) {
+        long start = System.nanoTime();
+        Path target = getAssetOutputFile(asset);
+        // Never remove the whole output when a source root folder is deleted
+        if (!target.equals(normalize(config.getDestinationFolder()))) {
+            delete(target.toFile());
+            changedOutputs.add(target.toFile());
+        }
+        metrics.end(BakeMetrics.Phase.ASSETS, start);
+    }
+
+    private Path getAssetOutputFile(File asset) {
+        Path path = normalize(asset);
+        Path assetFolder = normalize(config.getAssetFolder());
+        Path base = path.startsWith(assetFolder) ? assetFolder : normalize(config.getContentFolder());
+        return normalize(config.getDestinationFolder()).resolve(base.relativize(path)).normalize();
+    }
+
+    private void delete(File file) {
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            Files.walkFileTree(file.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            LOG.log(Level.FINE, "Deleted output [" + file.getPath() + "]");
+            changedOutputs.add(file);
+            metrics.increment(BakeMetrics.Count.DELETED_OUTPUTS);
+        } catch (IOException ex) {
+            errors.add(ex);
+        }
+    }
+
+    private List<File> listFiles(File directory) {
+        List<File> files = new ArrayList<File>();
+        File[] contents = directory.listFiles();
+        if (contents != null) {
+            Arrays.sort(contents);
+            for (File file : contents) {
+                if (file.isHidden()) {
+                    continue;
+                }
+                if (file.isFile()) {
+                    files.add(file);
+                } else if (FileUtil.directoryOnlyIfNotIgnored(file)) {
+                    files.addAll(listFiles(file));
+                }
+            }
+        }
+        return files;
+    }
+
+    private boolean isContentFile(File file) {
+        return Engines.getRecognizedExtensions().contains(FileUtil.fileExt(file));
+    }
+
+    private String buildHash(File sourceFile) {
+        try {
+            return FileUtil.sha1(sourceFile);
+        } catch (Exception ex) {
+            LOG.severe("Unable to build sha1 hash for source file '" + sourceFile + "'");
+            return "";
+        }
+    }
+
+    private String buildUri(File sourceFile) {
+        String uri = FileUtil.asPath(sourceFile).replace(FileUtil.asPath(config.getContentFolder()), "");
+        String prefix = config.getPrefixForUriWithoutExtension();
+        boolean noExtensionUri = config.getUriWithoutExtension() && prefix != null && prefix.length() > 0 && uri.startsWith(prefix);
+
+        int slashIndex = uri.lastIndexOf('/');
+        String path = uri.substring(0, slashIndex + 1);
+        String baseName = uri.substring(slashIndex + 1);
+        if (baseName.lastIndexOf('.') != -1) {
+            baseName = baseName.substring(0, baseName.lastIndexOf('.'));
+        }
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        try {
+            baseName = URLEncoder.encode(baseName, "UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException("Missing UTF-8 encoding??", ex);
+        }
+
+        if (noExtensionUri) {
+            return path + baseName + "/index" + config.getOutputExtension();
+        } else {
+            return path + baseName + config.getOutputExtension();
+        }
+    }
+
+    /**
+     * Returns the path of the source file relative to the content folder, which identifies it in the metrics.
+     */
+    private String getMetricsName(File sourceFile) {
+        Path path = normalize(sourceFile);
+        Path contentFolder = normalize(config.getContentFolder());
+        if (path.startsWith(contentFolder)) {
+            path = contentFolder.relativize(path);
+        }
+        return path.toString().replace(File.separatorChar, '/');
+    }
+
+    private static String getHeader(Map<String, Object> fileContents) {
+        Map<String, Object> header = new TreeMap<String, Object>();
+        for (Map.Entry<String, Object> entry : fileContents.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Object[]) {
+                value = Arrays.asList((Object[]) value);
+            }
+            header.put(entry.getKey(), value);
+        }
+        header.keySet().removeAll(VOLATILE_ATTRIBUTES);
+        return header.toString();
+    }
+
+    private static Path normalize(File file) {
+        return normalize(file.toPath());
+    }
+
+    private static Path normalize(Path path) {
+        return path.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Renders documents and overview pages like the JBake {@link Renderer}, but into memory, so that outputs are never truncated
+     * while they are rendered. Outputs are handed to the {@link OutputWriter}, which only writes them if they changed.
+     * Records the output file of every rendered document and overview page and the template of every overview page.
+     */
+    private class TrackingRenderer extends Renderer {
+
+        private final ContentStore db;
+        private final DelegatingTemplateEngine templateEngine;
+
+        public TrackingRenderer(ContentStore db, JBakeConfiguration config) {
+            this(db, config, new DelegatingTemplateEngine(db, config));
+        }
+
+        public TrackingRenderer(ContentStore db, JBakeConfiguration config, DelegatingTemplateEngine templateEngine) {
+            super(db, config, templateEngine);
+            this.db = db;
+            this.templateEngine = templateEngine;
+        }
+
+        @Override
+        public void renderIndex(String indexFile) throws Exception {
+            if (cancelled.get()) {
+                return;
+            }
+            long start = System.nanoTime();
+            File outputFile = new File(config.getDestinationFolder(), indexFile);
+            renderOverview(outputFile, "masterindex", createModel("masterindex"), "masterindex");
+            rendered(indexFile, start);
+            generated(Collections.singletonList(outputFile), "masterindex");
+        }
+
+        @Override
+        public void renderIndexPaging(String indexFile) throws Exception {
+            if (cancelled.get()) {
+                return;
+            }
+            long totalPosts = db.getPublishedCount("post");
+            if (totalPosts == 0) {
+                renderIndex(indexFile);
+                return;
+            }
+            long start = System.nanoTime();
+            int postsPerPage = config.getPostsPerPage();
+            PagingHelper pagingHelper = new PagingHelper(totalPosts, postsPerPage);
+            List<File> outputFiles = new ArrayList<File>();
+            try {
+                db.setLimit(postsPerPage);
+                for (int page = 1; page <= pagingHelper.getNumberOfPages(); page++) {
+                    db.setStart((page - 1) * postsPerPage);
+                    Map<String, Object> model = new HashMap<String, Object>();
+                    model.put("renderer", templateEngine);
+                    model.put("numberOfPages", pagingHelper.getNumberOfPages());
+                    model.put("currentPageNumber", page);
+                    model.put("previousFileName", pagingHelper.getPreviousFileName(page));
+                    model.put("nextFileName", pagingHelper.getNextFileName(page));
+                    Map<String, Object> content = buildSimpleModel("masterindex");
+                    if (page > 1) {
+                        content.put("rootpath", "../");
+                    }
+                    model.put("content", content);
+                    String fileName = pagingHelper.getCurrentFileName(page, indexFile);
+                    File outputFile = new File(config.getDestinationFolder(), fileName);
+                    renderOverview(outputFile, fileName, model, "masterindex");
+                    outputFiles.add(outputFile);
+                }
+            } catch (Exception ex) {
+                throw new Exception("Failed to render index. Cause: " + ex.getMessage(), ex);
+            } finally {
+                db.resetPagination();
+            }
+            rendered(indexFile, start);
+            generated(outputFiles, "masterindex");
+        }
+
+        @Override
+        public void renderSitemap(String sitemapFile) throws Exception {
+            renderSinglePage(sitemapFile, "sitemap");
+        }
+
+        @Override
+        public void renderFeed(String feedFile) throws Exception {
+            renderSinglePage(feedFile, "feed");
+        }
+
+        @Override
+        public void renderArchive(String archiveFile) throws Exception {
+            renderSinglePage(archiveFile, "archive");
+        }
+
+        @Override
+        public int renderTags(String tagPath) throws Exception {
+            if (cancelled.get()) {
+                return 0;
+            }
+            long start = System.nanoTime();
+            int renderedCount = 0;
+            List<Exception> errors = new ArrayList<Exception>();
+            List<File> tagFiles = new ArrayList<File>();
+            for (String tag : db.getAllTags()) {
+                File outputFile = new File(config.getDestinationFolder(), tagPath + File.separator + tag + config.getOutputExtension());
+                tagFiles.add(outputFile);
+                try {
+                    Map<String, Object> model = new HashMap<String, Object>();
+                    model.put("renderer", templateEngine);
+                    model.put("tag", tag);
+                    Map<String, Object> content = buildSimpleModel("tag");
+                    content.put("rootpath", FileUtil.getUriPathToDestinationRoot(config, outputFile));
+                    model.put("content", content);
+                    renderOverview(outputFile, "tag", model, "tag");
+                    renderedCount++;
+                } catch (Exception ex) {
+                    errors.add(ex);
+                }
+            }
+            List<File> indexFiles = new ArrayList<File>();
+            if (config.getRenderTagsIndex()) {
+                File outputFile = new File(config.getDestinationFolder(), tagPath + File.separator + "index" + config.getOutputExtension());
+                indexFiles.add(outputFile);
+                try {
+                    Map<String, Object> model = new HashMap<String, Object>();
+                    model.put("renderer", templateEngine);
+                    Map<String, Object> content = buildSimpleModel("tags");
+                    content.put("rootpath", FileUtil.getUriPathToDestinationRoot(config, outputFile));
+                    model.put("content", content);
+                    renderOverview(outputFile, "tagindex", model, "tagsindex");
+                    renderedCount++;
+                } catch (Exception ex) {
+                    errors.add(ex);
+                }
+            }
+            rendered(tagPath + "/", start);
+            generated(tagFiles, "tag");
+            generated(indexFiles, "tagsindex");
+
+            if (!errors.isEmpty()) {
+                StringBuilder sb = new StringBuilder("Failed to render tags. Cause(s):");
+                for (Exception error : errors) {
+                    sb.append('\n').append(error.getMessage());
+                }
+                throw new Exception(sb.toString(), errors.get(0));
+            }
+            return renderedCount;
+        }
+
+        @Override
+        public void render(Map<String, Object> content) throws Exception {
+            if (cancelled.get()) {
+                skippedDocuments.add(content);
+                return;
+            }
+            long start = System.nanoTime();
+            String uri = (String) content.get(Crawler.Attributes.URI);
+            String docType = (String) content.get(Crawler.Attributes.TYPE);
+            boolean draft = Crawler.Attributes.Status.DRAFT.equals(content.get(Crawler.Attributes.STATUS));
+            File outputFile = getOutputFile(uri, docType, draft);
+            File file = new File((String) content.get(Crawler.Attributes.FILE));
+            // The output of a document that was published or turned into a draft since the last bake
+            delete(getOutputFile(uri, docType, !draft));
+            Map<String, Object> model = new HashMap<String, Object>();
+            model.put("content", content);
+            model.put("renderer", templateEngine);
+            try {
+                String key = buildCache == null ? null : getDocumentPageKey(file, (String) content.get(String.valueOf(DocumentAttributes.SHA1)), outputFile);
+                renderOutput(outputFile, key, model, docType);
+            } catch (Exception ex) {
+                LOG.log(Level.SEVERE, "Rendering " + outputFile + " failed, keeping its previous output", ex);
+                throw new Exception("Failed to render file " + outputFile.getAbsolutePath() + ". Cause: " + ex.getMessage(), ex);
+            }
+            rendered(getMetricsName(file), start);
+            String sourceFile = file.getAbsolutePath();
+            Set<File> files = outputs.get(sourceFile);
+            if (files == null) {
+                files = new LinkedHashSet<File>();
+                outputs.put(sourceFile, files);
+            }
+            files.add(outputFile);
+            changedOutputs.add(outputFile);
+        }
+
+        private void renderSinglePage(String fileName, String type) throws Exception {
+            if (cancelled.get()) {
+                return;
+            }
+            long start = System.nanoTime();
+            File outputFile = new File(config.getDestinationFolder(), fileName);
+            renderOverview(outputFile, type, createModel(type), type);
+            rendered(fileName, start);
+            generated(Collections.singletonList(outputFile), type);
+        }
+
+        private void renderOverview(File outputFile, String name, Map<String, Object> model, String templateType) throws Exception {
+            try {
+                renderOutput(outputFile, buildCache == null ? null : getOverviewPageKey(outputFile), model, templateType);
+            } catch (Exception ex) {
+                LOG.log(Level.SEVERE, "Rendering " + name + " " + outputFile + " failed, keeping its previous output", ex);
+                throw new Exception("Failed to render " + name, ex);
+            }
+        }
+
+        /**
+         * Restores the output from the build cache or renders it and hands it to the {@link OutputWriter}.
+         * Nothing is written if rendering fails, so the previous output stays in place.
+         */
+        private void renderOutput(File outputFile, String key, Map<String, Object> model, String templateType) throws Exception {
+            byte[] content = restore(key, outputFile);
+            if (content == null) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream(RENDER_BUFFER_SIZE);
+                try (Writer writer = new OutputStreamWriter(baos, config.getRenderEncoding())) {
+                    templateEngine.renderDocument(model, config.getTemplateFileByDocType(templateType).getName(), writer);
+                }
+                content = baos.toByteArray();
+                store(key, outputFile, content);
+            }
+            outputWriter.write(outputFile, content, metrics);
+        }
+
+        private Map<String, Object> createModel(String type) {
+            Map<String, Object> model = new HashMap<String, Object>();
+            model.put("renderer", templateEngine);
+            model.put("content", buildSimpleModel(type));
+            if (config.getPaginateIndex()) {
+                model.put("numberOfPages", 0);
+                model.put("currentPageNumber", 0);
+                model.put("previousFileName", "");
+                model.put("nextFileName", "");
+            }
+            return model;
+        }
+
+        private Map<String, Object> buildSimpleModel(String type) {
+            Map<String, Object> content = new HashMap<String, Object>();
+            content.put("type", type);
+            content.put("rootpath", "");
+            return content;
+        }
+
+        private byte[] restore(String key, File outputFile) {
+            if (key == null) {
+                return null;
+            }
+            try {
+                byte[] content = buildCache.restore(key);
+                if (content != null) {
+                    metrics.increment(BakeMetrics.Count.RESTORED_PAGES);
+                }
+                return content;
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Could not restore " + outputFile + " from the build cache, rendering it instead", ex);
+            }
+            return null;
+        }
+
+        private void store(String key, File outputFile, byte[] content) {
+            if (key == null) {
+                return;
+            }
+            try {
+                buildCache.store(key, content);
+            } catch (IOException ex) {
+                LOG.log(Level.WARNING, "Could not store " + outputFile + " in the build cache", ex);
+            }
+        }
+
+        private void rendered(String name, long start) {
+            metrics.rendered(name, System.nanoTime() - start);
+        }
+
+        private void generated(List<File> outputFiles, String templateKey) {
+            File template = config.getTemplateFileByDocType(templateKey);
+            for (File outputFile : outputFiles) {
+                changedOutputs.add(outputFile);
+                if (template != null) {
+                    dependencies.addTemplate(outputFile.toPath(), template.toPath(), config.getTemplateFolder().toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * The parsing of a single content file which doesn't touch the content store and thus may run on any thread.
+     */
+    private class CrawlTask {
+
+        private final File sourceFile;
+        private final String sha1;
+        private final String uri;
+        private final boolean force;
+        private final boolean skipCache;
+        private Map<String, Object> fileContents;
+        private Set<Path> includes;
+        private boolean cached;
+        private long parseNanos;
+        private Exception error;
+
+        public CrawlTask(File sourceFile, String sha1, String uri, boolean force, boolean skipCache) {
+            this.sourceFile = sourceFile;
+            this.sha1 = sha1;
+            this.uri = uri;
+            this.force = force;
+            this.skipCache = skipCache;
+        }
+
+        public void parse() {
+            long start = System.nanoTime();
+            try {
+                includes = DependencyScanner.scanIncludes(sourceFile.toPath());
+                // The cached document is outdated if an included file changed, which is unknown for unresolved includes
+                boolean useCache = documentCache != null && !skipCache && !includes.contains(DependencyScanner.UNRESOLVED_INCLUDE);
+                fileContents = useCache ? documentCache.get(sourceFile, sha1) : null;
+                cached = fileContents != null;
+                if (!cached) {
+                    fileContents = parser.processFile(sourceFile);
+                }
+            } catch (Exception ex) {
+                error = ex;
+            } finally {
+                parseNanos = System.nanoTime() - start;
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes rendered outputs only if their content changed, so that the modification time of identical outputs stays the same
+ * and deploy tools, browser caches and the live reload don't consider them as changed. Outputs are rendered into memory
+ * and compared with the fingerprint of the output that was last written. Changed outputs are written to a temporary file
+ * which is then moved over the output, so the output is never missing or partially written while it is served.
+ * The comparison and writing happens on a small pool of I/O threads while the next pages are rendered.
+ * Outputs are submitted by the rendering thread only.
+ *
+ * @author Christian Beikov
+ */
+class OutputWriter {
+
+    private static final Logger LOG = Logger.getLogger(OutputWriter.class.getName());
+    private static final String TEMP_PREFIX = ".jbake-output-";
+    private static final int THREADS = 2;
+
+    // Absolute output path to the fingerprint of the output when it was last written or compared, which saves reading unchanged outputs
+    private final ConcurrentMap<String, Fingerprint> fingerprints = new ConcurrentHashMap<String, Fingerprint>();
+    private final Map<File, Future<Boolean>> pending = new LinkedHashMap<File, Future<Boolean>>();
+    private ExecutorService executorService;
+
+    /**
+     * The content hash of an output along with the size and modification time it had.
+     */
+    private static class Fingerprint {
+
+        private final String hash;
+        private final long size;
+        private final long lastModified;
+
+        public Fingerprint(String hash, long size, long lastModified) {
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The outputs of all submitted renderings since the last call to {@link #await()}.
+     */
+    public static class Result {
+
+        private final Set<File> written = new LinkedHashSet<File>();
+        private final Set<File> unchanged = new LinkedHashSet<File>();
+        private final List<Throwable> errors = new ArrayList<Throwable>();
+
+        public Set<File> getWritten() {
+            return written;
+        }
+
+        public Set<File> getUnchanged() {
+            return unchanged;
+        }
+
+        public List<Throwable> getErrors() {
+            return errors;
+        }
+    }
+
+    /**
+     * Deletes the temporary files that were left in the destination folder because the JVM stopped while writing outputs.
+     *
+     * @param destinationFolder The destination folder
+     */
+    public void deleteTempFiles(File destinationFolder) {
+        if (!destinationFolder.isDirectory()) {
+            return;
+        }
+        try {
+            Files.walkFileTree(destinationFolder.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (attrs.isRegularFile() && file.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                        try {
+                            Files.delete(file);
+                        } catch (IOException ex) {
+                            LOG.log(Level.FINE, "Could not delete " + file, ex);
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not delete the temporary files in " + destinationFolder, ex);
+        }
+    }
+
+    /**
+     * Compares the rendered content with the output in the background and writes it if it differs.
+     *
+     * @param output The output file
+     * @param content The rendered content
+     * @param metrics The metrics of the bake that record the allocations of the comparison
+     */
+    public void write(final File output, final byte[] content, final BakeMetrics metrics) {
+        if (executorService == null) {
+            executorService = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "jbake-output-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        pending.put(output, executorService.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                long allocated = metrics.threadAllocatedBytes();
+                try {
+                    return writeIfChanged(output, content);
+                } finally {
+                    metrics.recordAllocations(allocated);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Waits until all submitted outputs are compared and written.
+     *
+     * @return The written and the unchanged outputs
+     */
+    public Result await() {
+        Result result = new Result();
+        try {
+            for (Map.Entry<File, Future<Boolean>> entry : pending.entrySet()) {
+                try {
+                    if (entry.getValue().get()) {
+                        result.unchanged.add(entry.getKey());
+                    } else {
+                        result.written.add(entry.getKey());
+                    }
+                } catch (ExecutionException ex) {
+                    result.written.add(entry.getKey());
+                    result.errors.add(ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while writing outputs", ex);
+        } finally {
+            pending.clear();
+        }
+        return result;
+    }
+
+    public void close() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Writes the content to the output unless the output already has the same content.
+     *
+     * @return true if the output was left untouched, false if it was written
+     */
+    private boolean writeIfChanged(File output, byte[] content) throws IOException {
+        Path outputPath = output.toPath();
+        String key = output.getAbsolutePath();
+        String hash = BakeIndex.hash(content);
+        if (Files.isRegularFile(outputPath)) {
+            BasicFileAttributes attributes = Files.readAttributes(outputPath, BasicFileAttributes.class);
+            long size = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            if (size == content.length) {
+                Fingerprint fingerprint = fingerprints.get(key);
+                boolean unchanged;
+                if (fingerprint != null && fingerprint.size == size && fingerprint.lastModified == lastModified) {
+                    unchanged = hash.equals(fingerprint.hash);
+                } else {
+                    // Outputs of previous runs have no fingerprint yet, so they are read once
+                    unchanged = Arrays.equals(content, Files.readAllBytes(outputPath));
+                }
+                if (unchanged) {
+                    fingerprints.put(key, new Fingerprint(hash, size, lastModified));
+                    return true;
+                }
+            }
+        }
+
+        Path parent = outputPath.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tempFile = parent.resolve(TEMP_PREFIX + UUID.randomUUID() + "-" + output.getName());
+        try {
+            Files.write(tempFile, content);
+            try {
+                Files.move(tempFile, outputPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tempFile, outputPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        fingerprints.put(key, new Fingerprint(hash, content.length, Files.getLastModifiedTime(outputPath).toMillis()));
+        return false;
+    }
+}
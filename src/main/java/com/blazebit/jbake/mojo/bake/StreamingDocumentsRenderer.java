@@ -0,0 +1,119 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
+import org.apache.commons.configuration.CompositeConfiguration;
+import org.jbake.app.ContentStore;
+import org.jbake.app.DocumentList;
+import org.jbake.app.Renderer;
+import org.jbake.app.configuration.JBakeConfiguration;
+import org.jbake.model.DocumentAttributes;
+import org.jbake.model.DocumentTypes;
+import org.jbake.render.RenderingTool;
+import org.jbake.template.RenderingException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Renders the unrendered documents like the {@link org.jbake.render.DocumentsRenderer} of JBake, but loads them one at a time.
+ * Only the few attributes that are needed for the navigation between documents are kept in memory for all documents,
+ * so the memory needed for rendering doesn't grow with the size of the site. Stops early when the bake is cancelled,
+ * in which case the remaining documents stay unrendered.
+ *
+ * @author Christian Beikov
+ */
+class StreamingDocumentsRenderer implements RenderingTool {
+
+    // Same order as the unrendered content of the store
+    private static final String STATEMENT_GET_UNRENDERED_NAVIGATION = "select sourceuri, uri, noExtensionUri, title from %s where rendered=false order by date desc";
+
+    private final AtomicBoolean cancelled;
+
+    public StreamingDocumentsRenderer(AtomicBoolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    @Override
+    public int render(Renderer renderer, ContentStore db, JBakeConfiguration config) throws RenderingException {
+        int renderedCount = 0;
+        List<String> errors = new LinkedList<String>();
+        String sourceUriAttribute = String.valueOf(DocumentAttributes.SOURCE_URI);
+        for (String docType : DocumentTypes.getDocumentTypes()) {
+            // Every operation of the store activates its database on the current thread, which allows to run a projection
+            if (db.getDocumentCount(docType) == 0) {
+                continue;
+            }
+            String statement = String.format(STATEMENT_GET_UNRENDERED_NAVIGATION, quoteIdentifier(docType));
+            List<Map<String, Object>> navigation = new ArrayList<Map<String, Object>>(DocumentList.wrap(ODatabaseRecordThreadLocal.instance().get().query(statement)));
+            for (int index = 0; index < navigation.size(); index++) {
+                if (cancelled.get()) {
+                    return renderedCount;
+                }
+                try {
+                    DocumentList documents = db.getDocumentByUri(docType, (String) navigation.get(index).get(sourceUriAttribute));
+                    if (documents.isEmpty()) {
+                        continue;
+                    }
+                    Map<String, Object> document = documents.get(0);
+                    document.put("nextContent", index > 0 ? getContentForNav(navigation.get(index - 1)) : null);
+                    document.put("previousContent", index < navigation.size() - 1 ? getContentForNav(navigation.get(index + 1)) : null);
+                    renderer.render(document);
+                    renderedCount++;
+                } catch (Exception e) {
+                    errors.add(e.getMessage());
+                }
+            }
+            db.markContentAsRendered(docType);
+        }
+
+        if (!errors.isEmpty()) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("Failed to render documents. Cause(s):");
+            for (String error : errors) {
+                sb.append("\n").append(error);
+            }
+            throw new RenderingException(sb.toString());
+        }
+        return renderedCount;
+    }
+
+    // The interface of JBake 2.6 has no default implementation for the old overload, it is never called by the oven
+    @Deprecated
+    @Override
+    @SuppressWarnings("deprecation")
+    public int render(Renderer renderer, ContentStore db, File destination, File templatesPath, CompositeConfiguration config) throws RenderingException {
+        return render(renderer, db, null);
+    }
+
+    private static Map<String, Object> getContentForNav(Map<String, Object> document) {
+        Map<String, Object> navDocument = new HashMap<String, Object>();
+        navDocument.put("noExtensionUri", document.get("noExtensionUri"));
+        navDocument.put("uri", document.get("uri"));
+        navDocument.put("title", document.get("title"));
+        return navDocument;
+    }
+
+    private static String quoteIdentifier(String identifier) {
+        return "`" + identifier.replaceAll("([\\\\`])", "\\\\$1") + "`";
+    }
+}
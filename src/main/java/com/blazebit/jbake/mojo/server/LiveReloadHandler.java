@@ -0,0 +1,285 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.server;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pushes reload events to browsers via Server-Sent Events and injects the client script into served HTML pages.
+ * Other requests are handled by the wrapped handler. When the wrapped handler serves pages itself, it can inject the
+ * script by using this handler as {@link StaticFileHandler.PageFilter} and pages are no longer served by this handler.
+ *
+ * @author Christian Beikov
+ */
+public class LiveReloadHandler extends HandlerWrapper implements StaticFileHandler.PageFilter {
+
+    public static final String EVENTS_PATH = "/_jbake/livereload";
+    public static final String SCRIPT_PATH = "/_jbake/livereload.js";
+
+    private static final Logger LOG = Logger.getLogger(LiveReloadHandler.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] BODY_END_TAG = "</body>".getBytes(UTF_8);
+
+    private final String[] welcomeFiles;
+    private final String contextPath;
+    private final byte[] scriptTag;
+    private final byte[] script;
+    private final List<AsyncContext> clients = new CopyOnWriteArrayList<AsyncContext>();
+    private volatile File baseDirectory;
+    private boolean servePages = true;
+
+    public LiveReloadHandler(File baseDirectory, String[] welcomeFiles) {
+        this(baseDirectory, welcomeFiles, "");
+    }
+
+    /**
+     * Creates a handler for a site that is served under the given context path.
+     *
+     * @param baseDirectory The site output directory
+     * @param welcomeFiles The files to serve for directory requests
+     * @param contextPath The context path with a leading and without a trailing slash, or an empty string for the root context
+     */
+    public LiveReloadHandler(File baseDirectory, String[] welcomeFiles, String contextPath) {
+        this.baseDirectory = baseDirectory;
+        this.welcomeFiles = welcomeFiles;
+        this.contextPath = contextPath;
+        this.scriptTag = ("<script src=\"" + contextPath + SCRIPT_PATH + "\"></script>").getBytes(UTF_8);
+        this.script = loadScript();
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        if (!"GET".equals(request.getMethod())) {
+            super.handle(target, baseRequest, request, response);
+        } else if (EVENTS_PATH.equals(target)) {
+            baseRequest.setHandled(true);
+            connect(request, response);
+        } else if (SCRIPT_PATH.equals(target)) {
+            baseRequest.setHandled(true);
+            response.setContentType("application/javascript");
+            response.setHeader("Cache-Control", "no-cache");
+            response.setContentLength(script.length);
+            response.getOutputStream().write(script);
+        } else {
+            File page = servePages ? resolvePage(target) : null;
+            if (page == null) {
+                super.handle(target, baseRequest, request, response);
+            } else {
+                baseRequest.setHandled(true);
+                writePage(page, response);
+            }
+        }
+    }
+
+    /**
+     * Sets whether this handler serves HTML pages with the injected script or leaves that to the wrapped handler.
+     *
+     * @param servePages false if the wrapped handler serves pages through {@link #filter(byte[])}
+     */
+    public void setServePages(boolean servePages) {
+        this.servePages = servePages;
+    }
+
+    /**
+     * Switches the directory from which pages are served.
+     *
+     * @param baseDirectory The new site output directory
+     */
+    public void setBaseDirectory(File baseDirectory) {
+        this.baseDirectory = baseDirectory;
+    }
+
+    @Override
+    public byte[] filter(byte[] page) {
+        // Search for the tag on the byte level to avoid decoding, which works for all ASCII compatible encodings
+        int index = lastIndexOfIgnoreCase(page, BODY_END_TAG);
+        if (index == -1) {
+            index = page.length;
+        }
+
+        byte[] content = new byte[page.length + scriptTag.length];
+        System.arraycopy(page, 0, content, 0, index);
+        System.arraycopy(scriptTag, 0, content, index, scriptTag.length);
+        System.arraycopy(page, index, content, index + scriptTag.length, page.length - index);
+        return content;
+    }
+
+    /**
+     * Notifies all connected browsers about changed output files.
+     *
+     * @param changedPaths The changed paths relative to the base directory with a leading slash
+     *                     or <code>null</code> if every page should be reloaded
+     */
+    public void reload(Collection<String> changedPaths) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("event: reload\ndata: ");
+        if (changedPaths == null) {
+            sb.append("{\"all\":true}");
+        } else {
+            sb.append("{\"all\":false,\"paths\":[");
+            boolean first = true;
+            for (String path : changedPaths) {
+                if (first) {
+                    first = false;
+                } else {
+                    sb.append(',');
+                }
+                appendJsonString(sb, contextPath + path);
+            }
+            sb.append("]}");
+        }
+        sb.append("\n\n");
+        send(sb.toString().getBytes(UTF_8));
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        for (AsyncContext client : clients) {
+            complete(client);
+        }
+        clients.clear();
+        super.doStop();
+    }
+
+    private void connect(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        AsyncContext client = request.startAsync();
+        client.setTimeout(0);
+        // Flush a comment so that the browser knows the connection is established
+        OutputStream os = response.getOutputStream();
+        os.write(":connected\n\n".getBytes(UTF_8));
+        os.flush();
+        clients.add(client);
+    }
+
+    private void send(byte[] event) {
+        for (AsyncContext client : clients) {
+            try {
+                OutputStream os = client.getResponse().getOutputStream();
+                os.write(event);
+                os.flush();
+            } catch (IOException | RuntimeException ex) {
+                LOG.log(Level.FINE, "Dropping disconnected live reload client", ex);
+                clients.remove(client);
+                complete(client);
+            }
+        }
+    }
+
+    private void complete(AsyncContext client) {
+        try {
+            client.complete();
+        } catch (RuntimeException ex) {
+            // Already completed
+        }
+    }
+
+    private File resolvePage(String target) throws IOException {
+        if (target.contains("..")) {
+            return null;
+        }
+
+        File file = new File(baseDirectory, target);
+        if (file.isDirectory()) {
+            if (!target.endsWith("/")) {
+                // Let the wrapped handler redirect to the directory
+                return null;
+            }
+            for (String welcomeFile : welcomeFiles) {
+                File candidate = new File(file, welcomeFile);
+                if (candidate.isFile()) {
+                    file = candidate;
+                    break;
+                }
+            }
+        }
+
+        if (file.isFile() && file.getName().endsWith(".html")) {
+            return file;
+        }
+        return null;
+    }
+
+    private void writePage(File page, HttpServletResponse response) throws IOException {
+        byte[] content = filter(Files.readAllBytes(page.toPath()));
+        response.setContentType("text/html");
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentLength(content.length);
+        response.getOutputStream().write(content);
+    }
+
+    private static int lastIndexOfIgnoreCase(byte[] content, byte[] pattern) {
+        OUTER:
+        for (int i = content.length - pattern.length; i >= 0; i--) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (Character.toLowerCase(content[i + j]) != pattern[j]) {
+                    continue OUTER;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void appendJsonString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+
+    private static byte[] loadScript() {
+        try (InputStream is = LiveReloadHandler.class.getResourceAsStream("livereload.js")) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                baos.write(buffer, 0, read);
+            }
+            return baos.toByteArray();
+        } catch (IOException | RuntimeException ex) {
+            throw new IllegalStateException("Could not load the live reload script", ex);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the baked output as immutable generations so that the server never sees a half written site.
+ * The oven writes into a staging directory and after a bake, a new generation directory is built from it in which
+ * unchanged files are hard links to the files of the previous generation and only changed files are copied.
+ * Files of a published generation are never written again, so the current and the previous generation stay
+ * consistent for responses that are still in flight. Older generations are only deleted by {@link #deleteRetired()}
+ * after the server switched to the new generation.
+ *
+ * @author Christian Beikov
+ */
+public class OutputGenerations {
+
+    private static final Logger LOG = Logger.getLogger(OutputGenerations.class.getName());
+    private static final String PREFIX = "generation-";
+
+    private final Path stagingDirectory;
+    private final File generationsDirectory;
+    private int counter;
+    private boolean linkSupported = true;
+    private File current;
+    private File previous;
+    private final List<File> retired = new ArrayList<File>();
+
+    /**
+     * Creates the publisher and removes generations that are left over from a previous run.
+     *
+     * @param stagingDirectory The directory the oven writes to
+     * @param generationsDirectory The directory in which the generations are created
+     */
+    public OutputGenerations(File stagingDirectory, File generationsDirectory) {
+        this.stagingDirectory = stagingDirectory.getAbsoluteFile().toPath().normalize();
+        this.generationsDirectory = generationsDirectory;
+        delete(generationsDirectory.toPath());
+    }
+
+    /**
+     * Returns the generation that was published last.
+     *
+     * @return The directory of the current generation or <code>null</code> if nothing was published yet
+     */
+    public File getCurrent() {
+        return current;
+    }
+
+    /**
+     * Publishes the content of the staging directory as new generation. Unchanged files are compared by size and
+     * modification time with the current generation and hard linked, also if all files might have changed.
+     *
+     * @param changedOutputs The output files that changed since the last publication or <code>null</code> if all might have changed
+     * @return The directory of the new generation
+     * @throws IOException
+     */
+    public File publish(Set<File> changedOutputs) throws IOException {
+        final Path target = new File(generationsDirectory, PREFIX + (++counter)).getAbsoluteFile().toPath();
+        final Path base = current == null ? null : current.toPath();
+        final Set<Path> changed = toPaths(changedOutputs);
+        final int[] counts = new int[2];
+        long start = System.nanoTime();
+
+        Files.createDirectories(target.getParent());
+        try {
+            Files.walkFileTree(stagingDirectory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    Files.createDirectories(target.resolve(stagingDirectory.relativize(dir)));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Path relativePath = stagingDirectory.relativize(file);
+                    Path published = base == null ? null : base.resolve(relativePath);
+                    Path targetFile = target.resolve(relativePath);
+                    if (published != null && (changed == null || !changed.contains(file)) && isUnchanged(published, attrs) && link(published, targetFile)) {
+                        counts[0]++;
+                    } else {
+                        try {
+                            Files.copy(file, targetFile, StandardCopyOption.COPY_ATTRIBUTES);
+                            counts[1]++;
+                        } catch (NoSuchFileException ex) {
+                            // Deleted by the oven in the meantime
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            counter--;
+            delete(target);
+            throw ex;
+        }
+
+        if (previous != null) {
+            retired.add(previous);
+        }
+        previous = current;
+        current = target.toFile();
+        LOG.log(Level.FINE, "Published " + current + " in " + (System.nanoTime() - start) / 1000000L + "ms with " + counts[0] + " linked and " + counts[1] + " copied files");
+        return current;
+    }
+
+    /**
+     * Deletes the generations before the previous one, which must only happen after the server switched to the current generation.
+     */
+    public void deleteRetired() {
+        for (File generation : retired) {
+            delete(generation.toPath());
+        }
+        retired.clear();
+    }
+
+    /**
+     * Translates a file of the staging directory to the same file in the current generation.
+     *
+     * @param file The file in the staging directory
+     * @return The file in the current generation or the given file if it isn't part of the staging directory
+     */
+    public File resolve(File file) {
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        if (current == null || !path.startsWith(stagingDirectory)) {
+            return file;
+        }
+        return current.toPath().resolve(stagingDirectory.relativize(path)).toFile();
+    }
+
+    private Set<Path> toPaths(Set<File> files) {
+        if (files == null) {
+            return null;
+        }
+        Set<Path> paths = new HashSet<Path>(files.size());
+        for (File file : files) {
+            paths.add(file.getAbsoluteFile().toPath().normalize());
+        }
+        return paths;
+    }
+
+    private static boolean isUnchanged(Path published, BasicFileAttributes attrs) throws IOException {
+        try {
+            BasicFileAttributes publishedAttrs = Files.readAttributes(published, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return publishedAttrs.isRegularFile()
+                    && publishedAttrs.size() == attrs.size()
+                    // Copying the attributes doesn't preserve the full precision of the modification time on every file system
+                    && publishedAttrs.lastModifiedTime().toMillis() == attrs.lastModifiedTime().toMillis();
+        } catch (NoSuchFileException ex) {
+            return false;
+        }
+    }
+
+    private boolean link(Path source, Path target) {
+        if (!linkSupported) {
+            return false;
+        }
+        try {
+            Files.createLink(target, source);
+            return true;
+        } catch (IOException | UnsupportedOperationException ex) {
+            // Don't try again for every file if the file system doesn't support hard links
+            linkSupported = false;
+            LOG.log(Level.FINE, "Could not link " + source + ", copying files instead", ex);
+            return false;
+        }
+    }
+
+    private static void delete(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not delete " + directory, ex);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.server;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache for served files that is bounded by the total size of the cached content.
+ *
+ * @author Christian Beikov
+ */
+public class ResponseCache {
+
+    private final long maxSize;
+    // Guarded by this
+    private final LinkedHashMap<File, StaticResource> entries = new LinkedHashMap<File, StaticResource>(16, 0.75f, true);
+    private long size;
+
+    public ResponseCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public synchronized StaticResource get(File file) {
+        return entries.get(file);
+    }
+
+    /**
+     * Caches the resource and evicts the least recently used ones if the maximum size is exceeded.
+     * Resources that are bigger than the maximum size are not cached.
+     *
+     * @param file The file
+     * @param resource The resource
+     */
+    public synchronized void put(File file, StaticResource resource) {
+        long resourceSize = resource.getSize();
+        if (resourceSize > maxSize) {
+            return;
+        }
+
+        StaticResource previous = entries.put(file, resource);
+        if (previous != null) {
+            size -= previous.getSize();
+        }
+        size += resourceSize;
+
+        Iterator<Map.Entry<File, StaticResource>> iter = entries.entrySet().iterator();
+        while (size > maxSize && iter.hasNext()) {
+            Map.Entry<File, StaticResource> eldest = iter.next();
+            size -= eldest.getValue().getSize();
+            iter.remove();
+        }
+    }
+
+    public synchronized void invalidate(Collection<File> files) {
+        for (File file : files) {
+            StaticResource previous = entries.remove(file);
+            if (previous != null) {
+                size -= previous.getSize();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,689 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.server;
+
+import org.eclipse.jetty.http.MimeTypes;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
+import org.eclipse.jetty.util.IO;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves files of the site from memory with strong ETags and compressed variants that are chosen by the
+ * <code>Accept-Encoding</code> header. Gzip variants are stored in a separate directory so that the site output stays
+ * untouched, Brotli variants are served if a <code>.br</code> sibling exists next to the file in the site output.
+ * Files above the streaming threshold are read by the connection directly into its reused buffers from a file stream that
+ * is closed with the response, so that no file stays locked while the next bake replaces it, and support single byte range requests. HTML pages always pass
+ * the page filter. Requests for directories without trailing slash and files too big to buffer are handled by the
+ * wrapped handler.
+ *
+ * @author Christian Beikov
+ */
+public class StaticFileHandler extends HandlerWrapper {
+
+    private static final Logger LOG = Logger.getLogger(StaticFileHandler.class.getName());
+    private static final long MAX_BUFFERED_SIZE = 8L * 1024 * 1024;
+    // Compressing tiny files doesn't pay off because of the gzip header overhead
+    private static final int MIN_COMPRESSED_SIZE = 256;
+    private static final String GZIP = "gzip";
+    private static final String BROTLI = "br";
+
+    /**
+     * Transforms the content of HTML pages before they are cached and compressed.
+     */
+    public static interface PageFilter {
+
+        public byte[] filter(byte[] page);
+    }
+
+    private final String[] welcomeFiles;
+    private final File compressedDirectory;
+    private final ResponseCache cache;
+    private final long streamedThreshold;
+    private final MimeTypes mimeTypes = new MimeTypes();
+    private final ExecutorService precompressor;
+    private volatile File baseDirectory;
+    private volatile PageFilter pageFilter;
+
+    /**
+     * Creates a handler for the files in the given base directory.
+     *
+     * @param baseDirectory The site output directory
+     * @param welcomeFiles The files to serve for directory requests
+     * @param compressedDirectory The directory for gzip variants or <code>null</code> to disable compression
+     * @param cacheSize The maximum size of the in-memory cache in bytes, 0 disables caching
+     * @param streamedThreshold The minimum size of files in bytes that are streamed from disk with support for range requests, 0 disables streaming
+     */
+    public StaticFileHandler(File baseDirectory, String[] welcomeFiles, File compressedDirectory, long cacheSize, long streamedThreshold) {
+        this.baseDirectory = baseDirectory;
+        this.welcomeFiles = welcomeFiles;
+        this.compressedDirectory = compressedDirectory;
+        this.cache = cacheSize > 0 ? new ResponseCache(cacheSize) : null;
+        this.streamedThreshold = streamedThreshold;
+        if (compressedDirectory == null) {
+            this.precompressor = null;
+        } else {
+            this.precompressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "StaticFileHandler-precompressor");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    public void setPageFilter(PageFilter pageFilter) {
+        this.pageFilter = pageFilter;
+    }
+
+    /**
+     * Switches the directory from which files are served. Cached responses and compressed variants are keyed by the
+     * path relative to the base directory, so they stay valid for unchanged files.
+     *
+     * @param baseDirectory The new site output directory
+     */
+    public void setBaseDirectory(File baseDirectory) {
+        this.baseDirectory = baseDirectory;
+    }
+
+    @Override
+    public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException, ServletException {
+        String method = request.getMethod();
+        boolean head = "HEAD".equals(method);
+        File file = head || "GET".equals(method) ? resolveFile(target) : null;
+        if (file != null) {
+            long length = file.length();
+            if (isFiltered(file)) {
+                // Pages are served through the filter regardless of their size, e.g. so that they get the live reload script
+            } else if (isStreamed(length)) {
+                baseRequest.setHandled(true);
+                serveStreamed(file, request, response, head);
+                return;
+            } else if (!isBuffered(length)) {
+                file = null;
+            }
+        }
+        if (file == null) {
+            super.handle(target, baseRequest, request, response);
+            return;
+        }
+
+        StaticResource resource = getResource(file);
+        baseRequest.setHandled(true);
+
+        String encoding = selectEncoding(request.getHeader("Accept-Encoding"), resource);
+        byte[] body;
+        String etag;
+        if (BROTLI.equals(encoding)) {
+            body = resource.getBrotliContent();
+            etag = withSuffix(resource.getEtag(), BROTLI);
+        } else if (GZIP.equals(encoding)) {
+            body = resource.getGzipContent();
+            etag = withSuffix(resource.getEtag(), GZIP);
+        } else {
+            body = resource.getContent();
+            etag = resource.getEtag();
+        }
+
+        if (resource.getGzipContent() != null || resource.getBrotliContent() != null) {
+            response.setHeader("Vary", "Accept-Encoding");
+        }
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", resource.getLastModified());
+        if (isNotModified(request, etag, resource.getLastModified())) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        response.setContentType(resource.getContentType());
+        if (encoding != null) {
+            response.setHeader("Content-Encoding", encoding);
+        }
+        response.setContentLength(body.length);
+        if (!head) {
+            response.getOutputStream().write(body);
+        }
+    }
+
+    /**
+     * Removes the given files from the cache and compresses them again in the background.
+     *
+     * @param files The changed files or <code>null</code> if all files changed
+     */
+    public void invalidate(Collection<File> files) {
+        if (files == null) {
+            if (cache != null) {
+                cache.clear();
+            }
+            if (compressedDirectory != null) {
+                delete(compressedDirectory.toPath());
+                precompress(null);
+            }
+        } else {
+            List<File> absoluteFiles = new ArrayList<File>(files.size());
+            List<File> keys = new ArrayList<File>(files.size());
+            for (File file : files) {
+                absoluteFiles.add(file.getAbsoluteFile());
+                keys.add(getCacheKey(file));
+            }
+            if (cache != null) {
+                cache.invalidate(keys);
+            }
+            if (compressedDirectory != null) {
+                for (File file : absoluteFiles) {
+                    File variant = getGzipFile(file);
+                    if (variant != null) {
+                        variant.delete();
+                    }
+                }
+                precompress(absoluteFiles);
+            }
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (precompressor != null) {
+            precompressor.shutdownNow();
+        }
+        super.doStop();
+    }
+
+    private void precompress(final Collection<File> files) {
+        precompressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<File> targets = new ArrayList<File>();
+                if (files == null) {
+                    try {
+                        Files.walkFileTree(baseDirectory.toPath(), new SimpleFileVisitor<Path>() {
+                            @Override
+                            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                                targets.add(file.toFile().getAbsoluteFile());
+                                return FileVisitResult.CONTINUE;
+                            }
+                        });
+                    } catch (IOException ex) {
+                        LOG.log(Level.FINE, "Could not list the files to precompress", ex);
+                    }
+                } else {
+                    targets.addAll(files);
+                }
+
+                for (File file : targets) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    if (isFiltered(file)) {
+                        // Filtered pages are compressed in memory on demand
+                        continue;
+                    }
+                    if (file.isFile() && file.length() >= MIN_COMPRESSED_SIZE && isBuffered(file.length())
+                            && isCompressible(getContentType(file))) {
+                        try {
+                            getGzipContent(file, Files.readAllBytes(file.toPath()));
+                        } catch (IOException ex) {
+                            LOG.log(Level.FINE, "Could not precompress " + file, ex);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean isFiltered(File file) {
+        return pageFilter != null && file.getName().endsWith(".html");
+    }
+
+    private boolean isStreamed(long length) {
+        // The content length is an int, bigger files are left to the wrapped handler
+        return streamedThreshold > 0 && length >= streamedThreshold && length <= Integer.MAX_VALUE;
+    }
+
+    private boolean isBuffered(long length) {
+        return (cache != null || compressedDirectory != null) && length <= MAX_BUFFERED_SIZE && !isStreamed(length);
+    }
+
+    private void serveStreamed(File file, HttpServletRequest request, HttpServletResponse response, boolean head) throws IOException {
+        long length = file.length();
+        long lastModified = file.lastModified();
+        // Hashing big files on every change is too expensive, so the validator is derived from the file metadata
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+        response.setHeader("Accept-Ranges", "bytes");
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        long start = 0;
+        long end = length - 1;
+        String range = request.getHeader("Range");
+        if (range != null && isRangeApplicable(request, etag, lastModified)) {
+            long[] bounds = parseRange(range, length);
+            if (bounds != null) {
+                if (bounds.length == 0) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                start = bounds[0];
+                end = bounds[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+            }
+        }
+
+        int contentLength = (int) (end - start + 1);
+        response.setContentType(getContentType(file));
+        response.setContentLength(contentLength);
+        if (head || contentLength == 0) {
+            return;
+        }
+
+        // A memory mapping would keep the file locked on Windows until it is garbage collected, so the file is streamed
+        FileInputStream fileStream = new FileInputStream(file);
+        try {
+            fileStream.getChannel().position(start);
+            // Only a plain file stream lets the connection read through the file channel, so it isn't wrapped for ranges up to the end
+            InputStream in = end == length - 1 ? fileStream : new RangeInputStream(fileStream, contentLength);
+            ServletOutputStream os = response.getOutputStream();
+            if (os instanceof AbstractHttpConnection.Output) {
+                // The connection reads the file directly into its reused direct buffers and closes the stream
+                ((AbstractHttpConnection.Output) os).sendContent(in);
+            } else {
+                // Wrapped responses don't happen with this handler chain, but are still served correctly
+                IO.copy(in, os);
+            }
+        } finally {
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Limits a stream to the bytes of a range.
+     */
+    private static class RangeInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        public RangeInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b != -1) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private StaticResource getResource(File file) throws IOException {
+        long lastModified = file.lastModified();
+        long length = file.length();
+        File key = getCacheKey(file);
+        if (cache != null) {
+            StaticResource resource = cache.get(key);
+            if (resource != null && !resource.isStale(lastModified, length)) {
+                return resource;
+            }
+        }
+
+        byte[] content = Files.readAllBytes(file.toPath());
+        String contentType = getContentType(file);
+        PageFilter filter = pageFilter;
+        boolean filtered = filter != null && file.getName().endsWith(".html");
+        if (filtered) {
+            content = filter.filter(content);
+        }
+
+        byte[] gzipContent = null;
+        byte[] brotliContent = null;
+        if (compressedDirectory != null && content.length >= MIN_COMPRESSED_SIZE && isCompressible(contentType)) {
+            if (filtered) {
+                // Filtered content differs from the file, so it can't be stored as variant of the file
+                gzipContent = gzip(content);
+            } else {
+                gzipContent = getGzipContent(file, content);
+                File brotliFile = new File(file.getPath() + "." + BROTLI);
+                if (brotliFile.isFile() && brotliFile.lastModified() >= lastModified) {
+                    brotliContent = Files.readAllBytes(brotliFile.toPath());
+                }
+            }
+        }
+
+        StaticResource resource = new StaticResource(contentType, lastModified, length, "\"" + hash(content) + "\"", content, gzipContent, brotliContent);
+        if (cache != null) {
+            cache.put(key, resource);
+        }
+        return resource;
+    }
+
+    private byte[] getGzipContent(File file, byte[] content) throws IOException {
+        File variant = getGzipFile(file);
+        if (variant == null) {
+            return gzip(content);
+        }
+        if (variant.isFile() && variant.lastModified() >= file.lastModified()) {
+            return Files.readAllBytes(variant.toPath());
+        }
+
+        byte[] gzipContent = gzip(content);
+        variant.getParentFile().mkdirs();
+        File tempFile = File.createTempFile(variant.getName(), ".tmp", variant.getParentFile());
+        try {
+            Files.write(tempFile.toPath(), gzipContent);
+            Files.move(tempFile.toPath(), variant.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+        return gzipContent;
+    }
+
+    private File getGzipFile(File file) {
+        Path relativePath = relativize(file);
+        if (relativePath == null) {
+            return null;
+        }
+        return new File(compressedDirectory, relativePath.toString() + ".gz");
+    }
+
+    private File getCacheKey(File file) {
+        Path relativePath = relativize(file);
+        return relativePath == null ? file.getAbsoluteFile() : relativePath.toFile();
+    }
+
+    private Path relativize(File file) {
+        Path base = baseDirectory.getAbsoluteFile().toPath().normalize();
+        Path path = file.getAbsoluteFile().toPath().normalize();
+        if (!path.startsWith(base)) {
+            return null;
+        }
+        return base.relativize(path);
+    }
+
+    private File resolveFile(String target) {
+        if (target.contains("..")) {
+            return null;
+        }
+
+        File file = new File(baseDirectory, target).getAbsoluteFile();
+        if (file.isDirectory()) {
+            if (!target.endsWith("/")) {
+                // Let the wrapped handler redirect to the directory
+                return null;
+            }
+            for (String welcomeFile : welcomeFiles) {
+                File candidate = new File(file, welcomeFile);
+                if (candidate.isFile()) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
+        return file.isFile() ? file : null;
+    }
+
+    private String getContentType(File file) {
+        Buffer mimeType = mimeTypes.getMimeByExtension(file.getName());
+        return mimeType == null ? "application/octet-stream" : mimeType.toString();
+    }
+
+    private static boolean isCompressible(String contentType) {
+        return contentType.startsWith("text/")
+                || contentType.endsWith("javascript")
+                || contentType.endsWith("json")
+                || contentType.endsWith("xml")
+                || contentType.startsWith("image/svg");
+    }
+
+    private static String selectEncoding(String acceptEncoding, StaticResource resource) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        if (resource.getBrotliContent() != null && accepts(acceptEncoding, BROTLI)) {
+            return BROTLI;
+        }
+        if (resource.getGzipContent() != null && accepts(acceptEncoding, GZIP)) {
+            return GZIP;
+        }
+        return null;
+    }
+
+    private static boolean accepts(String acceptEncoding, String encoding) {
+        for (String part : acceptEncoding.split(",")) {
+            String[] tokens = part.trim().split(";");
+            if (encoding.equalsIgnoreCase(tokens[0].trim())) {
+                for (int i = 1; i < tokens.length; i++) {
+                    String parameter = tokens[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            return Double.parseDouble(parameter.substring(2)) > 0;
+                        } catch (NumberFormatException ex) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if ("*".equals(candidate) || etag.equals(candidate)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static boolean isRangeApplicable(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.trim().startsWith("\"")) {
+            return etag.equals(ifRange.trim());
+        }
+        try {
+            return lastModified / 1000 == request.getDateHeader("If-Range") / 1000;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Parses a byte range header.
+     *
+     * @param range The value of the range header
+     * @param length The length of the file
+     * @return The first and last byte position, an empty array if the range is not satisfiable or <code>null</code>
+     *         if the header should be ignored because it is invalid or requests multiple ranges
+     */
+    private static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=")) {
+            return null;
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1 || spec.indexOf(',') != -1) {
+            return null;
+        }
+
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        long start;
+        long end;
+        try {
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+                // A suffix range requests the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0) {
+                    return new long[0];
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (!last.isEmpty() && Long.parseLong(last) < start) {
+                    return null;
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+
+        if (start >= length) {
+            return new long[0];
+        }
+        return new long[]{ start, end };
+    }
+
+    private static String withSuffix(String etag, String suffix) {
+        return etag.substring(0, etag.length() - 1) + "-" + suffix + "\"";
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream os = new GZIPOutputStream(baos)) {
+            os.write(content);
+        }
+        return baos.toByteArray();
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is not available", ex);
+        }
+    }
+
+    private static void delete(Path directory) {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not delete " + directory, ex);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.server;
+
+/**
+ * The content of a served file along with its compressed variants and validators.
+ *
+ * @author Christian Beikov
+ */
+public class StaticResource {
+
+    private final String contentType;
+    private final long lastModified;
+    private final long fileLength;
+    private final String etag;
+    private final byte[] content;
+    private final byte[] gzipContent;
+    private final byte[] brotliContent;
+
+    public StaticResource(String contentType, long lastModified, long fileLength, String etag, byte[] content, byte[] gzipContent, byte[] brotliContent) {
+        this.contentType = contentType;
+        this.lastModified = lastModified;
+        this.fileLength = fileLength;
+        this.etag = etag;
+        this.content = content;
+        this.gzipContent = gzipContent;
+        this.brotliContent = brotliContent;
+    }
+
+    /**
+     * Returns whether the file changed since the resource was created.
+     *
+     * @param lastModified The current modification time of the file
+     * @param fileLength The current length of the file
+     * @return true if the resource is outdated
+     */
+    public boolean isStale(long lastModified, long fileLength) {
+        return this.lastModified != lastModified || this.fileLength != fileLength;
+    }
+
+    public long getSize() {
+        long size = content.length;
+        if (gzipContent != null) {
+            size += gzipContent.length;
+        }
+        if (brotliContent != null) {
+            size += brotliContent.length;
+        }
+        return size;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public byte[] getGzipContent() {
+        return gzipContent;
+    }
+
+    public byte[] getBrotliContent() {
+        return brotliContent;
+    }
+}
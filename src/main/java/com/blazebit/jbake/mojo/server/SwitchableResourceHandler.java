@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.server;
+
+import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.util.URIUtil;
+import org.eclipse.jetty.util.resource.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+
+/**
+ * A resource handler whose base directory can be switched while requests are served. Every request resolves its
+ * resource against the base directory that was current when it arrived.
+ *
+ * @author Christian Beikov
+ */
+public class SwitchableResourceHandler extends ResourceHandler {
+
+    private volatile Resource baseResource;
+
+    /**
+     * Switches the directory from which resources are served.
+     *
+     * @param baseDirectory The new site output directory
+     * @throws IOException
+     */
+    public void setBaseDirectory(File baseDirectory) throws IOException {
+        setBaseResource(Resource.newResource(baseDirectory));
+    }
+
+    @Override
+    public void setBaseResource(Resource base) {
+        super.setBaseResource(base);
+        this.baseResource = base;
+    }
+
+    @Override
+    public Resource getBaseResource() {
+        return baseResource;
+    }
+
+    @Override
+    public Resource getResource(String path) throws MalformedURLException {
+        if (path == null || !path.startsWith("/")) {
+            throw new MalformedURLException(path);
+        }
+
+        Resource base = baseResource;
+        if (base == null) {
+            return super.getResource(path);
+        }
+        String canonicalPath = URIUtil.canonicalPath(path);
+        if (canonicalPath == null) {
+            return null;
+        }
+        try {
+            return base.addPath(canonicalPath);
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+}
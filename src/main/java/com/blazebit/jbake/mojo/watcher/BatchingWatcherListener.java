@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.watcher;
+
+import java.nio.file.Path;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Collects the events of the watcher threads in a lock-free queue and hands them to a {@link WatcherBatchListener}
+ * as one deduplicated change set when the changes settled.
+ *
+ * @author Christian Beikov
+ */
+public class BatchingWatcherListener implements WatcherListener {
+
+    private final WatcherBatchListener listener;
+    private final Queue<Change> queue = new ConcurrentLinkedQueue<Change>();
+    private final AtomicBoolean refresh = new AtomicBoolean();
+
+    public BatchingWatcherListener(WatcherBatchListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void refreshQueued() {
+        // The refresh is delivered once it happens
+    }
+
+    @Override
+    public void refresh() {
+        refresh.set(true);
+        settled();
+    }
+
+    @Override
+    public void settled() {
+        if (refresh.getAndSet(false)) {
+            // Anything might have changed, so the queued changes don't matter
+            queue.clear();
+            listener.refresh();
+            return;
+        }
+
+        ChangeSet changes = new ChangeSet();
+        Change change;
+        while ((change = queue.poll()) != null) {
+            changes.add(change.path, change.kind);
+        }
+        if (!changes.isEmpty()) {
+            listener.changed(changes);
+        }
+    }
+
+    @Override
+    public void created(Path path) {
+        queue.add(new Change(ChangeSet.Kind.CREATED, path));
+    }
+
+    @Override
+    public void deleted(Path path) {
+        queue.add(new Change(ChangeSet.Kind.DELETED, path));
+    }
+
+    @Override
+    public void modified(Path path) {
+        queue.add(new Change(ChangeSet.Kind.MODIFIED, path));
+    }
+
+    public WatcherBatchListener getListener() {
+        return listener;
+    }
+
+    private static class Change {
+
+        private final ChangeSet.Kind kind;
+        private final Path path;
+
+        public Change(ChangeSet.Kind kind, Path path) {
+            this.kind = kind;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.watcher;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A set of changed paths that keeps only the final state of every path.
+ * A path that is created and deleted again within one change set is dropped,
+ * a path that is deleted and re-created is treated as modified.
+ *
+ * @author Christian Beikov
+ */
+public class ChangeSet {
+
+    public static enum Kind {
+        CREATED,
+        MODIFIED,
+        DELETED;
+    }
+
+    private final Map<Path, Kind> changes = new LinkedHashMap<Path, Kind>();
+
+    public void created(Path path) {
+        Kind previous = changes.get(path);
+        if (previous == Kind.DELETED) {
+            changes.put(path, Kind.MODIFIED);
+        } else if (previous == null) {
+            changes.put(path, Kind.CREATED);
+        }
+    }
+
+    public void modified(Path path) {
+        Kind previous = changes.get(path);
+        if (previous == null || previous == Kind.DELETED) {
+            changes.put(path, Kind.MODIFIED);
+        }
+    }
+
+    public void deleted(Path path) {
+        if (changes.get(path) == Kind.CREATED) {
+            changes.remove(path);
+        } else {
+            changes.put(path, Kind.DELETED);
+        }
+    }
+
+    public void add(Path path, Kind kind) {
+        switch (kind) {
+            case CREATED:
+                created(path);
+                break;
+            case MODIFIED:
+                modified(path);
+                break;
+            case DELETED:
+                deleted(path);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported kind: " + kind);
+        }
+    }
+
+    public void addAll(ChangeSet other) {
+        for (Map.Entry<Path, Kind> entry : other.changes.entrySet()) {
+            add(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public Kind get(Path path) {
+        return changes.get(path);
+    }
+
+    public List<Path> getPaths(Kind kind) {
+        List<Path> paths = new ArrayList<Path>();
+        for (Map.Entry<Path, Kind> entry : changes.entrySet()) {
+            if (entry.getValue() == kind) {
+                paths.add(entry.getKey());
+            }
+        }
+        return paths;
+    }
+
+    public Map<Path, Kind> getChanges() {
+        return Collections.unmodifiableMap(changes);
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    public int size() {
+        return changes.size();
+    }
+
+    public void clear() {
+        changes.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeSet" + changes;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.watcher;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The modification time and size of the entries of the visited directories, which allows to find out what changed
+ * in a directory after the events for it were lost.
+ * Directories are put by the registration threads, everything else happens on the thread that processes events.
+ *
+ * @author Christian Beikov
+ */
+class DirectorySnapshot {
+
+    private final ConcurrentMap<Path, Map<Path, Entry>> directories = new ConcurrentHashMap<Path, Map<Path, Entry>>();
+    private final boolean skipHidden;
+
+    public DirectorySnapshot(boolean skipHidden) {
+        this.skipHidden = skipHidden;
+    }
+
+    /**
+     * Reads the current entries of the given directory without recording them.
+     *
+     * @param dir The directory
+     * @return The entries by path
+     * @throws IOException
+     */
+    public Map<Path, Entry> list(Path dir) throws IOException {
+        Map<Path, Entry> entries = new HashMap<Path, Entry>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path child : stream) {
+                if (skipHidden && child.getFileName().toString().charAt(0) == '.') {
+                    continue;
+                }
+                Entry entry = read(child);
+                if (entry != null) {
+                    entries.put(child, entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Records the entries of the given directory.
+     *
+     * @param dir The directory
+     * @param entries The entries by path as returned by {@link #list(Path)}
+     * @return The previously recorded entries or an empty map
+     */
+    public Map<Path, Entry> put(Path dir, Map<Path, Entry> entries) {
+        Map<Path, Entry> previous = directories.put(dir, entries);
+        return previous == null ? Collections.<Path, Entry>emptyMap() : previous;
+    }
+
+    /**
+     * Returns the number of recorded directories.
+     *
+     * @return The number of directories
+     */
+    public int size() {
+        return directories.size();
+    }
+
+    /**
+     * Updates the entry of a created or modified path if its parent directory is recorded.
+     *
+     * @param path The changed path
+     */
+    public void update(Path path) {
+        Map<Path, Entry> entries = directories.get(path.getParent());
+        if (entries != null) {
+            try {
+                Entry entry = read(path);
+                if (entry == null) {
+                    entries.remove(path);
+                } else {
+                    entries.put(path, entry);
+                }
+            } catch (IOException ex) {
+                // The next change or rescan will record it
+                entries.remove(path);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry of a deleted path along with the recorded entries below it.
+     *
+     * @param path The deleted path
+     */
+    public void remove(Path path) {
+        Map<Path, Entry> entries = directories.get(path.getParent());
+        if (entries != null) {
+            entries.remove(path);
+        }
+        forget(path);
+    }
+
+    /**
+     * Removes the recorded entries of the given directory and its sub-directories.
+     *
+     * @param dir The directory
+     */
+    public void forget(Path dir) {
+        Map<Path, Entry> entries = directories.remove(dir);
+        if (entries != null) {
+            for (Map.Entry<Path, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().isDirectory()) {
+                    forget(entry.getKey());
+                }
+            }
+        }
+    }
+
+    private static Entry read(Path path) throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            return new Entry(attributes.isDirectory(), attributes.lastModifiedTime().toMillis(), attributes.size());
+        } catch (NoSuchFileException ex) {
+            // Deleted in the meantime
+            return null;
+        }
+    }
+
+    /**
+     * The state of a file or directory when it was last seen.
+     */
+    static class Entry {
+
+        private final boolean directory;
+        private final long lastModified;
+        private final long size;
+
+        public Entry(boolean directory, long lastModified, long size) {
+            this.directory = directory;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        /**
+         * Returns whether the file changed since the given previous state. Changes of directories are ignored
+         * as they only reflect changes of their entries.
+         *
+         * @param previous The previous state
+         * @return true if the content of the file might have changed
+         */
+        public boolean isModified(Entry previous) {
+            return !directory && (lastModified != previous.lastModified || size != previous.size);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.watcher;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+
+/**
+ * Watches a directory tree and notifies a listener about changes.
+ *
+ * @author Christian Beikov
+ */
+public interface DirectoryWatcher {
+
+    public Path getRootDir();
+
+    public WatcherListener getListener();
+
+    /**
+     * Returns the number of watched directories.
+     *
+     * @return The number of watched directories
+     */
+    public int getWatchCount();
+
+    /**
+     * Returns the number of directories that were skipped because they matched an exclude pattern.
+     *
+     * @return The number of excluded directories
+     */
+    public int getExcludedCount();
+
+    /**
+     * Processes all pending changes without blocking.
+     *
+     * @throws ClosedWatchServiceException if the watcher was closed
+     */
+    public void processEvents() throws ClosedWatchServiceException;
+
+    /**
+     * Blocks until changes are available and processes them.
+     *
+     * @throws ClosedWatchServiceException if the watcher was closed
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void awaitEvents() throws ClosedWatchServiceException, InterruptedException;
+
+    public void close();
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.watcher;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds changes by periodically comparing the directory tree with a snapshot of the modification times and sizes of its files.
+ * This works on file systems that don't deliver native events like network file systems or bind mounts of containers.
+ * Directories are scanned in parallel and the interval grows while nothing changes.
+ *
+ * @author Christian Beikov
+ */
+public class PollingWatchDir implements DirectoryWatcher {
+
+    private static final Logger LOG = Logger.getLogger(PollingWatchDir.class.getName());
+    public static final long DEFAULT_INTERVAL = 500L;
+    // Listing directories and reading attributes is I/O bound, so scanning benefits from multiple threads
+    private static final int SCAN_THREADS = Runtime.getRuntime().availableProcessors();
+    // The interval doubles with every scan without changes up to this multiple of the configured interval
+    private static final int MAX_BACKOFF = 8;
+    // The interval is at least this multiple of the last scan duration so that big trees don't keep the CPU busy
+    private static final int SCAN_DURATION_FACTOR = 4;
+
+    private final WatcherTimerService timerService;
+    private final Path rootDir;
+    private final WatcherListener listener;
+    private final boolean skipHidden;
+    private final WatchFilter filter;
+    private final DirectorySnapshot snapshot;
+    private final long minInterval;
+    private final ForkJoinPool pool;
+    private final AtomicInteger excludedCount = new AtomicInteger();
+    private final Object lock = new Object();
+    // Only accessed by the polling thread
+    private long interval;
+    private volatile boolean closed;
+
+    PollingWatchDir(WatcherTimerService timerService, Path dir, WatcherListener listener, boolean skipHidden, WatchFilter filter, long interval) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            throw new NotDirectoryException(dir.toString());
+        }
+        this.timerService = timerService;
+        this.rootDir = dir;
+        this.listener = listener;
+        this.skipHidden = skipHidden;
+        this.filter = filter;
+        this.snapshot = new DirectorySnapshot(skipHidden);
+        this.minInterval = interval;
+        this.interval = interval;
+        this.pool = new ForkJoinPool(SCAN_THREADS);
+
+        // The initial scan only records the snapshot
+        pool.invoke(new ScanTask(dir, false));
+    }
+
+    @Override
+    public void processEvents() throws ClosedWatchServiceException {
+        if (closed) {
+            throw new ClosedWatchServiceException();
+        }
+
+        long start = System.nanoTime();
+        ScanTask task = new ScanTask(rootDir, true);
+        pool.invoke(task);
+        long scanMillis = (System.nanoTime() - start) / 1000000L;
+
+        boolean dispatched = false;
+        for (Change change : task.changes) {
+            try {
+                dispatched |= dispatch(change);
+            } catch (RuntimeException ex) {
+                logException(ex);
+            }
+        }
+
+        if (dispatched) {
+            interval = minInterval;
+            timerService.settle(this, listener);
+        } else {
+            interval = Math.min(interval * 2, minInterval * MAX_BACKOFF);
+        }
+        interval = Math.max(interval, scanMillis * SCAN_DURATION_FACTOR);
+        LOG.log(Level.FINEST, "Scanned " + snapshot.size() + " directories in " + scanMillis + "ms, next scan in " + interval + "ms");
+    }
+
+    @Override
+    public void awaitEvents() throws ClosedWatchServiceException, InterruptedException {
+        synchronized (lock) {
+            long deadline = System.nanoTime() + interval * 1000000L;
+            long remaining = interval;
+            while (!closed && remaining > 0) {
+                lock.wait(remaining);
+                remaining = (deadline - System.nanoTime()) / 1000000L;
+            }
+        }
+        processEvents();
+    }
+
+    private boolean dispatch(Change change) {
+        if (!filter.isEmpty() && !filter.accept(rootDir.relativize(change.path))) {
+            return false;
+        }
+        switch (change.kind) {
+            case CREATED:
+                listener.created(change.path);
+                break;
+            case DELETED:
+                listener.deleted(change.path);
+                break;
+            default:
+                listener.modified(change.path);
+                break;
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        pool.shutdown();
+    }
+
+    @Override
+    public Path getRootDir() {
+        return rootDir;
+    }
+
+    @Override
+    public WatcherListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Returns the number of directories that are scanned.
+     *
+     * @return The number of directories
+     */
+    @Override
+    public int getWatchCount() {
+        return snapshot.size();
+    }
+
+    @Override
+    public int getExcludedCount() {
+        return excludedCount.get();
+    }
+
+    private boolean isHidden(Path dir) {
+        Path name = dir.getFileName();
+        return skipHidden && name != null && name.toString().charAt(0) == '.';
+    }
+
+    /**
+     * Compares the entries of a directory with the snapshot and forks the scanning of its sub-directories.
+     * Newly found directories are only recorded, the created event of the directory covers their content.
+     */
+    private class ScanTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final boolean report;
+        private final List<Change> changes = new ArrayList<Change>();
+
+        public ScanTask(Path dir, boolean report) {
+            this.dir = dir;
+            this.report = report;
+        }
+
+        @Override
+        protected void compute() {
+            if (isHidden(dir)) {
+                return;
+            }
+            if (filter.isExcluded(rootDir.relativize(dir))) {
+                if (!report) {
+                    excludedCount.incrementAndGet();
+                }
+                return;
+            }
+
+            Map<Path, DirectorySnapshot.Entry> current;
+            try {
+                current = snapshot.list(dir);
+            } catch (NoSuchFileException ex) {
+                // The deletion is reported by the parent directory
+                return;
+            } catch (IOException ex) {
+                // Keep the previous snapshot and try again with the next scan
+                LOG.log(Level.FINE, "Could not scan " + dir, ex);
+                return;
+            }
+            Map<Path, DirectorySnapshot.Entry> previous = snapshot.put(dir, current);
+
+            List<ScanTask> tasks = new ArrayList<ScanTask>();
+            for (Map.Entry<Path, DirectorySnapshot.Entry> entry : current.entrySet()) {
+                Path child = entry.getKey();
+                DirectorySnapshot.Entry state = entry.getValue();
+                if (!report) {
+                    if (state.isDirectory()) {
+                        tasks.add(new ScanTask(child, false));
+                    }
+                    continue;
+                }
+
+                DirectorySnapshot.Entry previousState = previous.get(child);
+                if (previousState == null || previousState.isDirectory() != state.isDirectory()) {
+                    if (state.isDirectory()) {
+                        tasks.add(new ScanTask(child, false));
+                    } else if (previousState != null) {
+                        snapshot.forget(child);
+                    }
+                    changes.add(new Change(ChangeSet.Kind.CREATED, child));
+                } else if (state.isModified(previousState)) {
+                    changes.add(new Change(ChangeSet.Kind.MODIFIED, child));
+                } else if (state.isDirectory()) {
+                    tasks.add(new ScanTask(child, true));
+                }
+            }
+            if (report) {
+                for (Path child : previous.keySet()) {
+                    if (!current.containsKey(child)) {
+                        snapshot.forget(child);
+                        changes.add(new Change(ChangeSet.Kind.DELETED, child));
+                    }
+                }
+            }
+
+            invokeAll(tasks);
+            for (ScanTask task : tasks) {
+                changes.addAll(task.changes);
+            }
+        }
+    }
+
+    private static class Change {
+
+        private final ChangeSet.Kind kind;
+        private final Path path;
+
+        public Change(ChangeSet.Kind kind, Path path) {
+            this.kind = kind;
+            this.path = path;
+        }
+    }
+
+    private void logException(Throwable e) {
+        LOG.log(Level.SEVERE, "An error occurred in the polling watcher!", e);
+    }
+}
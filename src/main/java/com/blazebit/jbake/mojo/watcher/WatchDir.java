@@ -17,18 +17,23 @@ package com.blazebit.jbake.mojo.watcher;
 
 import java.io.IOException;
 import java.nio.file.ClosedWatchServiceException;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,13 +42,15 @@ import java.util.logging.Logger;
  * @author Christian Beikov
  */
 @SuppressWarnings("restriction")
-public class WatchDir {
+public class WatchDir implements DirectoryWatcher {
 
     private static final Logger LOG = Logger.getLogger(WatchDir.class.getName());
     private static final WatchEvent.Kind<?>[] watchEventKinds = new WatchEvent.Kind<?>[]{
         StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
         StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.OVERFLOW};
     private static final WatchEvent.Modifier[] watchModifiers;
+    // Listing directories is I/O bound, so the initial registration of big trees benefits from multiple threads
+    private static final int REGISTRATION_THREADS = Runtime.getRuntime().availableProcessors();
 
     private final WatcherTimerService timerService;
     private final Path rootDir;
@@ -52,6 +59,9 @@ public class WatchDir {
     private final Map<WatchKey, Path> keys;
     private final boolean recursive;
     private final boolean skipHidden;
+    private final WatchFilter filter;
+    private final DirectorySnapshot snapshot;
+    private final AtomicInteger excludedCount = new AtomicInteger();
 
     static {
         if (System.getProperty("os.name").startsWith("Windows")) {
@@ -63,99 +73,227 @@ public class WatchDir {
     }
 
     WatchDir(WatcherTimerService timerService, Path dir, WatcherListener listener, boolean recursive, boolean skipHidden) throws IOException {
+        this(timerService, dir, listener, recursive, skipHidden, WatchFilter.ALL);
+    }
+
+    WatchDir(WatcherTimerService timerService, Path dir, WatcherListener listener, boolean recursive, boolean skipHidden, WatchFilter filter) throws IOException {
         this.timerService = timerService;
         this.rootDir = dir;
         this.watcher = dir.getFileSystem().newWatchService();
         this.listener = listener;
-        this.keys = new HashMap<WatchKey, Path>();
+        // Keys are added by the registration threads and the thread processing events
+        this.keys = new ConcurrentHashMap<WatchKey, Path>();
         this.recursive = recursive;
         this.skipHidden = skipHidden;
+        this.filter = filter;
+        this.snapshot = new DirectorySnapshot(skipHidden);
 
         if (recursive) {
-            registerAll(dir);
+            registerAll(dir, REGISTRATION_THREADS);
         } else {
             register(dir);
+            snapshot.put(dir, snapshot.list(dir));
         }
     }
 
-    void processEvents() throws ClosedWatchServiceException {
-        // poll for key to be signaled
+    /**
+     * Processes all pending events without blocking.
+     */
+    @Override
+    public void processEvents() throws ClosedWatchServiceException {
+        boolean dispatched = false;
         WatchKey key;
         while ((key = watcher.poll()) != null) {
-            Path dir = keys.get(key);
-            if (dir == null) {
-                LOG.severe("WatchKey not recognized: " + key);
-                continue;
-            }
+            dispatched |= processKey(key);
+        }
+        if (dispatched) {
+            timerService.settle(this, listener);
+        }
+    }
+
+    /**
+     * Blocks until events are available and processes them along with all other pending events.
+     */
+    @Override
+    public void awaitEvents() throws ClosedWatchServiceException, InterruptedException {
+        boolean dispatched = processKey(watcher.take());
+        WatchKey key;
+        while ((key = watcher.poll()) != null) {
+            dispatched |= processKey(key);
+        }
+        if (dispatched) {
+            timerService.settle(this, listener);
+        }
+    }
+
+    private boolean processKey(WatchKey key) {
+        Path dir = keys.get(key);
+        if (dir == null) {
+            LOG.severe("WatchKey not recognized: " + key);
+            return false;
+        }
 
-            OUTER:
-            for (WatchEvent<?> event : key.pollEvents()) {
-                WatchEvent.Kind<?> kind = event.kind();
+        boolean dispatched = false;
+        // Determined once per key instead of per event since a save-all or a branch switch produces hundreds of events
+        Boolean refreshRequeued = null;
+        OUTER:
+        for (WatchEvent<?> event : key.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
 
-                if (StandardWatchEventKinds.OVERFLOW == kind) {
+            if (StandardWatchEventKinds.OVERFLOW == kind) {
+                try {
+                    // Events of the directory were lost, so compare it with the snapshot to find out what changed
+                    dispatched |= rescan(dir);
+                } catch (IOException ex) {
+                    logException(ex);
                     try {
                         listener.refreshQueued();
                         // Queue a refresh after a timeout
                         timerService.queue(this, listener);
-                    } catch (RuntimeException ex) {
-                        logException(ex);
+                    } catch (RuntimeException e) {
+                        logException(e);
                     }
-                } else {
-                    // Skip event if queued refresh was re-queued
-                    if (timerService.requeue(this, listener)) {
-                        continue;
-                    }
-                    // Context for directory entry event is the file name of entry
-                    @SuppressWarnings("unchecked")
-                    Path name = ((WatchEvent<Path>) event).context();
-
-                    if (skipHidden) {
-                        for (int i = 0; i < name.getNameCount(); i++) {
-                            if (name.getName(i).toString().charAt(0) == '.') {
-                                continue OUTER;
-                            }
+                } catch (RuntimeException ex) {
+                    logException(ex);
+                }
+            } else {
+                // Skip event if queued refresh was re-queued
+                if (refreshRequeued == null) {
+                    refreshRequeued = timerService.requeue(this, listener);
+                }
+                if (refreshRequeued) {
+                    continue;
+                }
+                // Context for directory entry event is the file name of entry
+                @SuppressWarnings("unchecked")
+                Path name = ((WatchEvent<Path>) event).context();
+
+                if (skipHidden) {
+                    for (int i = 0; i < name.getNameCount(); i++) {
+                        if (name.getName(i).toString().charAt(0) == '.') {
+                            continue OUTER;
                         }
                     }
+                }
 
-                    Path child = dir.resolve(name);
+                Path child = dir.resolve(name);
+                // Directories that aren't included may still contain included ones, so only the dispatching is skipped
+                boolean accepted = filter.isEmpty() || filter.accept(rootDir.relativize(child));
 
-                    try {
-                        if (StandardWatchEventKinds.ENTRY_CREATE == kind) {
-                            // if directory is created, and watching recursively, then
-                            // register it and its sub-directories
-                            if (recursive && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
-                                registerRecursive(child);
-                            }
-                            listener.created(name);
-                        } else if (StandardWatchEventKinds.ENTRY_DELETE == kind) {
-                            listener.deleted(name);
-                        } else if (StandardWatchEventKinds.ENTRY_MODIFY == kind) {
-                            // Directory modify events are actually unnecessary when doing recursive watching
-                            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
-                                LOG.log(Level.FINE, "Skipped modify event for directory: " + name);
-                            } else {
-                                listener.modified(name);
+                try {
+                    if (StandardWatchEventKinds.ENTRY_CREATE == kind) {
+                        // if directory is created, and watching recursively, then
+                        // register it and its sub-directories
+                        if (recursive && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            registerRecursive(child);
+                        }
+                        snapshot.update(child);
+                        if (accepted) {
+                            listener.created(child);
+                            dispatched = true;
+                        }
+                    } else if (StandardWatchEventKinds.ENTRY_DELETE == kind) {
+                        snapshot.remove(child);
+                        if (accepted) {
+                            listener.deleted(child);
+                            dispatched = true;
+                        }
+                    } else if (StandardWatchEventKinds.ENTRY_MODIFY == kind) {
+                        // Directory modify events are actually unnecessary when doing recursive watching
+                        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                            LOG.log(Level.FINE, "Skipped modify event for directory: " + name);
+                        } else {
+                            snapshot.update(child);
+                            if (accepted) {
+                                listener.modified(child);
+                                dispatched = true;
                             }
                         }
-                    } catch (RuntimeException ex) {
-                        logException(ex);
                     }
+                } catch (RuntimeException ex) {
+                    logException(ex);
                 }
             }
+        }
 
-            // reset key and remove from set if directory no longer accessible
-            boolean valid = key.reset();
-            if (!valid) {
-                keys.remove(key);
+        // reset key and remove from set if directory no longer accessible
+        boolean valid = key.reset();
+        if (!valid) {
+            keys.remove(key);
+        }
+        return dispatched;
+    }
+
+    /**
+     * Compares the entries of the given directory with the snapshot and dispatches created, modified and deleted events
+     * for the differences. Sub-directories are only compared if they aren't registered themselves, registered ones
+     * receive their own overflow event if their events were lost.
+     */
+    private boolean rescan(Path dir) throws IOException {
+        if (!Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS)) {
+            // The deletion is reported by the parent directory
+            snapshot.remove(dir);
+            return false;
+        }
 
-                // all directories are inaccessible
-                if (keys.isEmpty()) {
-                    break;
+        boolean dispatched = false;
+        Map<Path, DirectorySnapshot.Entry> current = snapshot.list(dir);
+        Map<Path, DirectorySnapshot.Entry> previous = snapshot.put(dir, current);
+        for (Map.Entry<Path, DirectorySnapshot.Entry> entry : current.entrySet()) {
+            Path child = entry.getKey();
+            DirectorySnapshot.Entry state = entry.getValue();
+            DirectorySnapshot.Entry previousState = previous.get(child);
+            if (previousState == null || previousState.isDirectory() != state.isDirectory()) {
+                if (state.isDirectory()) {
+                    if (recursive) {
+                        registerRecursive(child);
+                    }
+                } else if (previousState != null) {
+                    snapshot.forget(child);
                 }
+                dispatched |= dispatch(StandardWatchEventKinds.ENTRY_CREATE, child);
+            } else if (state.isModified(previousState)) {
+                dispatched |= dispatch(StandardWatchEventKinds.ENTRY_MODIFY, child);
+            } else if (state.isDirectory() && isUnregistered(child)) {
+                dispatched |= rescan(child);
+            }
+        }
+        for (Path child : previous.keySet()) {
+            if (!current.containsKey(child)) {
+                snapshot.forget(child);
+                dispatched |= dispatch(StandardWatchEventKinds.ENTRY_DELETE, child);
             }
         }
+        return dispatched;
+    }
+
+    private boolean isUnregistered(Path dir) {
+        if (!recursive) {
+            return false;
+        }
+        Path relativePath = rootDir.relativize(dir);
+        if (filter.isExcluded(relativePath)) {
+            return false;
+        }
+        // With the file tree modifier only the root is registered
+        return watchModifiers.length == 1 || !filter.isIncluded(relativePath);
     }
 
+    private boolean dispatch(WatchEvent.Kind<?> kind, Path path) {
+        if (!filter.isEmpty() && !filter.accept(rootDir.relativize(path))) {
+            return false;
+        }
+        if (StandardWatchEventKinds.ENTRY_CREATE == kind) {
+            listener.created(path);
+        } else if (StandardWatchEventKinds.ENTRY_DELETE == kind) {
+            listener.deleted(path);
+        } else {
+            listener.modified(path);
+        }
+        return true;
+    }
+
+    @Override
     public void close() {
         try {
             watcher.close();
@@ -164,43 +302,147 @@ public class WatchDir {
         }
     }
 
+    @Override
     public Path getRootDir() {
         return rootDir;
     }
 
+    @Override
     public WatcherListener getListener() {
         return listener;
     }
 
+    /**
+     * Returns the number of directories that are registered with the watch service.
+     *
+     * @return The number of watches
+     */
+    @Override
+    public int getWatchCount() {
+        return keys.size();
+    }
+
+    @Override
+    public int getExcludedCount() {
+        return excludedCount.get();
+    }
+
     private void registerRecursive(Path dir) {
-        // Only needed on non-windows platforms
-        if (watchModifiers.length == 0) {
-            try {
-                registerAll(dir);
-            } catch (IOException ex) {
-                logException(ex);
-            }
+        // Registration is only needed on non-windows platforms, but the snapshot is always needed
+        try {
+            registerAll(dir, 1);
+        } catch (IOException ex) {
+            logException(ex);
         }
     }
 
     private void register(Path dir) throws IOException {
-        if (!skipHidden || dir.getFileName().toString().charAt(0) != '.') {
+        if (!isHidden(dir)) {
             WatchKey key = dir.register(watcher, watchEventKinds, watchModifiers);
             keys.put(key, dir);
         }
     }
 
-    private void registerAll(final Path start) throws IOException {
-        if (watchModifiers.length == 1) {
-            register(start);
+    private boolean isHidden(Path dir) {
+        Path name = dir.getFileName();
+        return skipHidden && name != null && name.toString().charAt(0) == '.';
+    }
+
+    private void registerAll(Path start, int threads) throws IOException {
+        if (threads > 1) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.invoke(new RegisterTask(start));
+            } catch (RegistrationException ex) {
+                throw ex.getCause();
+            } finally {
+                pool.shutdown();
+            }
         } else {
-            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
-                @Override
-                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                    register(dir);
-                    return FileVisitResult.CONTINUE;
+            Deque<Path> directories = new ArrayDeque<Path>();
+            directories.push(start);
+            while (!directories.isEmpty()) {
+                for (Path child : visit(directories.pop())) {
+                    directories.push(child);
                 }
-            });
+            }
+        }
+    }
+
+    /**
+     * Registers the directory if it is watched, records its entries in the snapshot and returns the sub-directories that have to be visited.
+     * Hidden and excluded directories are skipped along with their sub-directories.
+     */
+    private List<Path> visit(Path dir) throws IOException {
+        if (isHidden(dir)) {
+            return Collections.emptyList();
+        }
+        Path relativePath = rootDir.relativize(dir);
+        if (filter.isExcluded(relativePath)) {
+            excludedCount.incrementAndGet();
+            return Collections.emptyList();
+        }
+        if (watchModifiers.length == 1) {
+            // The file tree modifier watches the whole tree, so the filter is only applied to events
+            if (dir.equals(rootDir)) {
+                register(dir);
+            }
+        } else if (filter.isIncluded(relativePath)) {
+            register(dir);
+        }
+
+        Map<Path, DirectorySnapshot.Entry> entries = snapshot.list(dir);
+        snapshot.put(dir, entries);
+        List<Path> children = new ArrayList<Path>();
+        for (Map.Entry<Path, DirectorySnapshot.Entry> entry : entries.entrySet()) {
+            if (entry.getValue().isDirectory()) {
+                children.add(entry.getKey());
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Visits a directory and forks the visiting of its sub-directories.
+     */
+    private class RegisterTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+
+        public RegisterTask(Path dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            List<Path> children;
+            try {
+                children = visit(dir);
+            } catch (IOException ex) {
+                throw new RegistrationException(ex);
+            }
+
+            List<RegisterTask> tasks = new ArrayList<RegisterTask>(children.size());
+            for (Path child : children) {
+                tasks.add(new RegisterTask(child));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private static class RegistrationException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        public RegistrationException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
         }
     }
 
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.watcher;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides which paths below a watched root directory are watched based on glob patterns.
+ * Patterns without a slash match the name of a file or directory at any depth, other patterns match the path relative to the root.
+ * A path is excluded if it or one of its parents matches an exclude pattern. If include patterns are given, a path is only
+ * included if it or one of its parents matches an include pattern, so the root itself is only watched without includes.
+ *
+ * @author Christian Beikov
+ */
+public class WatchFilter {
+
+    public static final WatchFilter ALL = new WatchFilter(null, null);
+
+    private final List<Pattern> includes;
+    private final List<Pattern> excludes;
+
+    public WatchFilter(String[] includes, String[] excludes) {
+        FileSystem fileSystem = FileSystems.getDefault();
+        this.includes = compile(fileSystem, includes);
+        this.excludes = compile(fileSystem, excludes);
+    }
+
+    private static List<Pattern> compile(FileSystem fileSystem, String[] patterns) {
+        List<Pattern> compiled = new ArrayList<Pattern>();
+        if (patterns != null) {
+            for (String pattern : patterns) {
+                String trimmed = pattern == null ? "" : pattern.trim();
+                if (!trimmed.isEmpty()) {
+                    compiled.add(new Pattern(fileSystem.getPathMatcher("glob:" + trimmed), trimmed.indexOf('/') == -1));
+                }
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns whether the given path should be watched.
+     *
+     * @param relativePath The path relative to the watched root directory
+     * @return true if the path is included and not excluded
+     */
+    public boolean accept(Path relativePath) {
+        return !isExcluded(relativePath) && isIncluded(relativePath);
+    }
+
+    /**
+     * Returns whether the given path or one of its parents matches an exclude pattern.
+     * Excluded directories don't have to be visited at all.
+     *
+     * @param relativePath The path relative to the watched root directory
+     * @return true if the path is excluded
+     */
+    public boolean isExcluded(Path relativePath) {
+        return !excludes.isEmpty() && matchesSelfOrParent(excludes, relativePath);
+    }
+
+    /**
+     * Returns whether the given path or one of its parents matches an include pattern or if there are no include patterns.
+     * Directories that aren't included still have to be visited as their children might be included.
+     *
+     * @param relativePath The path relative to the watched root directory
+     * @return true if the path is included
+     */
+    public boolean isIncluded(Path relativePath) {
+        return includes.isEmpty() || matchesSelfOrParent(includes, relativePath);
+    }
+
+    public boolean isEmpty() {
+        return includes.isEmpty() && excludes.isEmpty();
+    }
+
+    private static boolean matchesSelfOrParent(List<Pattern> patterns, Path relativePath) {
+        for (Path path = relativePath; path != null && !path.toString().isEmpty(); path = path.getParent()) {
+            for (Pattern pattern : patterns) {
+                if (pattern.matches(path)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class Pattern {
+
+        private final PathMatcher matcher;
+        private final boolean nameOnly;
+
+        public Pattern(PathMatcher matcher, boolean nameOnly) {
+            this.matcher = matcher;
+            this.nameOnly = nameOnly;
+        }
+
+        public boolean matches(Path path) {
+            return matcher.matches(nameOnly ? path.getFileName() : path);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.watcher;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The mechanism that is used to find changes of watched directories.
+ *
+ * @author Christian Beikov
+ */
+public enum WatcherBackend {
+
+    /**
+     * Polls on file systems that are known to not deliver native events and on platforms where the JDK only polls, uses native events otherwise.
+     */
+    AUTO,
+    /**
+     * Uses the watch service of the file system.
+     */
+    NATIVE,
+    /**
+     * Scans the directories periodically.
+     */
+    POLLING;
+
+    private static final Logger LOG = Logger.getLogger(WatcherBackend.class.getName());
+    // File systems on which changes done by other machines, like the host of a container or a VM, produce no native events
+    private static final Set<String> REMOTE_FILE_SYSTEMS = new HashSet<String>(Arrays.asList(
+        "nfs", "nfs4", "cifs", "smb", "smbfs", "smb2", "afpfs", "webdav", "davfs", "fuse.sshfs",
+        "9p", "virtiofs", "fakeowner", "fuse.grpcfuse", "osxfs", "fuse.osxfs", "vboxsf", "vmhgfs", "fuse.vmhgfs-fuse", "prl_fs"
+    ));
+
+    /**
+     * Returns the backend to use for the given directory, which is only different from this backend for {@link #AUTO}.
+     *
+     * @param dir The watched directory
+     * @return {@link #NATIVE} or {@link #POLLING}
+     */
+    public WatcherBackend resolve(Path dir) {
+        if (this != AUTO) {
+            return this;
+        }
+
+        try {
+            String type = Files.getFileStore(dir).type();
+            if (type != null && REMOTE_FILE_SYSTEMS.contains(type.toLowerCase(Locale.ROOT))) {
+                LOG.log(Level.FINE, "Polling " + dir + " on file system " + type);
+                return POLLING;
+            }
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not determine the file system of " + dir, ex);
+        }
+
+        // Without native support the JDK falls back to an implementation that scans every few seconds
+        try (WatchService watchService = dir.getFileSystem().newWatchService()) {
+            if (watchService.getClass().getName().endsWith("PollingWatchService")) {
+                return POLLING;
+            }
+        } catch (IOException | UnsupportedOperationException ex) {
+            return POLLING;
+        }
+        return NATIVE;
+    }
+}
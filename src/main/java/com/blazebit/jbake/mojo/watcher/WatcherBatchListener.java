@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.watcher;
+
+/**
+ * Receives the changes of a quiet period at once instead of one callback per event.
+ *
+ * @author Christian Beikov
+ * @see BatchingWatcherListener
+ */
+public interface WatcherBatchListener {
+
+    /**
+     * Called once the changes settled with the final state of every changed path.
+     *
+     * @param changes The changes since the last notification, never empty
+     */
+    public void changed(ChangeSet changes);
+
+    /**
+     * Called once the changes settled after events were lost, so anything might have changed.
+     */
+    public void refresh();
+}
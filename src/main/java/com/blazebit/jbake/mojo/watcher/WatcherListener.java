@@ -27,6 +27,8 @@ public interface WatcherListener {
 
     public void refresh();
 
+    public void settled();
+
     public void created(Path path);
 
     public void deleted(Path path);
@@ -5,6 +5,8 @@ import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Path;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -13,25 +15,72 @@ import java.util.logging.Logger;
  *
  * @author Christian Beikov
  */
-public class WatcherService extends Thread {
+public class WatcherService {
 
     private static final Logger LOG = Logger.getLogger(WatcherService.class.getName());
-    private static final long DEFAULT_SLEEP = 100L;
 
-    private final WatcherTimerService timerService = new WatcherTimerService();
+    private final WatcherTimerService timerService;
+    private final WatcherBackend backend;
+    private final long pollInterval;
 
-    private final List<WatchDir> watchers = new CopyOnWriteArrayList<WatchDir>();
+    private final List<DirectoryWatcher> watchers = new CopyOnWriteArrayList<DirectoryWatcher>();
+    private final ConcurrentMap<DirectoryWatcher, Thread> threads = new ConcurrentHashMap<DirectoryWatcher, Thread>();
     private volatile boolean running = true;
+    private volatile boolean started;
+
+    public WatcherService() {
+        this(WatcherTimerService.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * Creates a watcher service that notifies listeners about settled changes after the given quiet period.
+     *
+     * @param quietPeriod The quiet period in milliseconds
+     */
+    public WatcherService(long quietPeriod) {
+        this(quietPeriod, WatcherBackend.NATIVE, PollingWatchDir.DEFAULT_INTERVAL);
+    }
+
+    /**
+     * Creates a watcher service that notifies listeners about settled changes after the given quiet period.
+     *
+     * @param quietPeriod The quiet period in milliseconds
+     * @param backend The backend that finds changes
+     * @param pollInterval The minimum interval in milliseconds between scans of the polling backend
+     */
+    public WatcherService(long quietPeriod, WatcherBackend backend, long pollInterval) {
+        this.timerService = new WatcherTimerService(quietPeriod);
+        this.backend = backend;
+        this.pollInterval = pollInterval;
+    }
 
     public void addListener(Path path, WatcherListener listener) {
+        addListener(path, listener, WatchFilter.ALL);
+    }
+
+    /**
+     * Watches the given directory recursively and notifies the listener about changes of paths accepted by the filter.
+     *
+     * @param path The root directory
+     * @param listener The listener
+     * @param filter The filter for paths relative to the root directory
+     */
+    public void addListener(Path path, WatcherListener listener, WatchFilter filter) {
         if (!running) {
             return;
         }
 
-        WatchDir watchDir = null;
+        DirectoryWatcher watchDir = null;
         try {
-            watchDir = new WatchDir(timerService, path, listener, true, true);
+            if (backend.resolve(path) == WatcherBackend.POLLING) {
+                watchDir = new PollingWatchDir(timerService, path, listener, true, filter, pollInterval);
+            } else {
+                watchDir = new WatchDir(timerService, path, listener, true, true, filter);
+            }
             watchers.add(watchDir);
+            if (started) {
+                startThread(watchDir);
+            }
         } catch (IOException e) {
             logException(e.getCause());
             removeListener(path, listener);
@@ -44,10 +93,10 @@ public class WatcherService extends Thread {
     }
 
     public void removeListener(Path path, WatcherListener listener) {
-        Iterator<WatchDir> iter = watchers.iterator();
+        Iterator<DirectoryWatcher> iter = watchers.iterator();
 
         while (iter.hasNext()) {
-            WatchDir watchDir = iter.next();
+            DirectoryWatcher watchDir = iter.next();
 
             if (path.equals(watchDir.getRootDir()) && listener.equals(watchDir.getListener())) {
                 watchers.remove(watchDir);
@@ -57,44 +106,89 @@ public class WatcherService extends Thread {
         }
     }
 
-    private void close(WatchDir watchDir) {
+    /**
+     * Returns the number of directories registered with the watch services of all watched directories.
+     *
+     * @return The number of watches
+     */
+    public int getWatchCount() {
+        int count = 0;
+        for (DirectoryWatcher watchDir : watchers) {
+            count += watchDir.getWatchCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of directories that were skipped because they matched an exclude pattern.
+     *
+     * @return The number of excluded directories
+     */
+    public int getExcludedCount() {
+        int count = 0;
+        for (DirectoryWatcher watchDir : watchers) {
+            count += watchDir.getExcludedCount();
+        }
+        return count;
+    }
+
+    private void close(DirectoryWatcher watchDir) {
+        // Closing the watch service ends the thread that waits for its events
         watchDir.close();
+        threads.remove(watchDir);
     }
 
+    /**
+     * Starts a thread per watched directory that blocks until events arrive and dispatches them to the listeners.
+     */
     public void init() {
-        setName("WatcherService");
-        start();
+        started = true;
+        for (DirectoryWatcher watchDir : watchers) {
+            startThread(watchDir);
+        }
+    }
+
+    private void startThread(final DirectoryWatcher watchDir) {
+        Thread thread = new Thread("WatcherService-" + watchDir.getRootDir().getFileName()) {
+            @Override
+            public void run() {
+                while (running) {
+                    try {
+                        watchDir.awaitEvents();
+                    } catch (ClosedWatchServiceException e) {
+                        return;
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        if (threads.putIfAbsent(watchDir, thread) == null) {
+            thread.start();
+        }
     }
 
     public void shutdown() {
         running = false;
-        interrupt();
 
-        Iterator<WatchDir> iter = watchers.iterator();
+        Iterator<DirectoryWatcher> iter = watchers.iterator();
 
         while (iter.hasNext()) {
-            WatchDir watchDir = iter.next();
+            DirectoryWatcher watchDir = iter.next();
             close(watchDir);
         }
 
         watchers.clear();
+        timerService.shutdown();
     }
 
-    @Override
-    public void run() {
-        while (running) {
-            try {
-                sleep(DEFAULT_SLEEP);
-                processEvents();
-            } catch (InterruptedException e) {
-                // Ignore these rare temporary event
-            }
-        }
-    }
-
+    /**
+     * Processes pending events of all watched directories without blocking. Only needed if {@link #init()} wasn't called.
+     */
     public void processEvents() {
         try {
-            for (WatchDir entry : watchers) {
+            for (DirectoryWatcher entry : watchers) {
                 entry.processEvents();
             }
         } catch (ClosedWatchServiceException e) {
@@ -15,153 +15,194 @@
  */
 package com.blazebit.jbake.mojo.watcher;
 
-import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * 
+ * Debounces the notifications of listeners per watched directory. Every call only moves a deadline and schedules
+ * a notification if none is scheduled yet, so the threads that process events never block or allocate tasks.
+ * A notification that fires before the deadline schedules itself again for the remaining time.
+ * Notifications run on a single thread.
+ *
  * @author Christian Beikov
  */
 public class WatcherTimerService {
 
     private static final Logger LOG = Logger.getLogger(WatcherTimerService.class.getName());
-    private static final long DEFAULT_TIMEOUT = 400L;
+    public static final long DEFAULT_TIMEOUT = 400L;
+    // Time to wait for a running notification on shutdown
+    private static final long SHUTDOWN_TIMEOUT = 10000L;
 
-    private final Timer timer = new Timer("WatcherTimerService");
-    private final ConcurrentMap<WatchDir, WatcherTimerTask> queuedRefreshTasks = new ConcurrentHashMap<WatchDir, WatcherTimerTask>();
+    private final ScheduledThreadPoolExecutor executor;
+    private final ConcurrentMap<DirectoryWatcher, Debouncer> debouncers = new ConcurrentHashMap<DirectoryWatcher, Debouncer>();
+    private final long timeoutNanos;
     private volatile boolean running = true;
 
-    public void shutdown() {
-        running = false;
-        timer.cancel();
+    public WatcherTimerService() {
+        this(DEFAULT_TIMEOUT);
+    }
 
-        Iterator<WatcherTimerTask> iter = queuedRefreshTasks.values().iterator();
+    /**
+     * Creates a timer service that delays refreshes and the settle notification by the given timeout.
+     *
+     * @param timeout The quiet period in milliseconds
+     */
+    public WatcherTimerService(long timeout) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "WatcherTimerService");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
 
-        while (iter.hasNext()) {
-            WatcherTimerTask task = iter.next();
-            task.await();
-        }
+    public long getTimeout() {
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
 
-        queuedRefreshTasks.clear();
+    /**
+     * Stops scheduling notifications and waits for a running notification to finish.
+     */
+    public void shutdown() {
+        running = false;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        debouncers.clear();
     }
 
     /**
-     * Queues a refresh. Re-queues unscheduled existing refreshes if possible.
+     * Notifies the listener about settled changes once no further changes happened within the timeout.
+     * Postpones the notification if one is already scheduled.
      *
      * @param watchDir
      * @param listener
      */
-    public void queue(WatchDir watchDir, WatcherListener listener) {
+    public void settle(DirectoryWatcher watchDir, WatcherListener listener) {
         if (!running) {
             return;
         }
-        final WatcherTimerTask task = new WatcherTimerTask(watchDir, listener);
-        final WatcherTimerTask previousTask = queuedRefreshTasks.putIfAbsent(watchDir, task);
-        if (previousTask == null) {
-            LOG.finest("Scheduled refresh");
-            timer.schedule(task, DEFAULT_TIMEOUT);
-        } else {
-            // Try rescheduling the previous task
-            if (previousTask.cancel()) {
-                LOG.finest("Canceled and rescheduled refresh");
-                // Queued task is canceled and then rescheduled
-                timer.schedule(task, DEFAULT_TIMEOUT);
-            } else {
-                // If not successful, schedule this task
-                LOG.finest("Additionally scheduled refresh");
-                if (!queuedRefreshTasks.replace(watchDir, previousTask, task)) {
-                    // Since queuing is single-threaded this replace must always succeed, but just to be safe
-                    queuedRefreshTasks.put(watchDir, task);
-                }
-                // Since the timer is single-threaded there is no need for a lock per WatchDir
-                timer.schedule(task, DEFAULT_TIMEOUT);
-            }
+        getDebouncer(watchDir, listener).postpone();
+    }
+
+    /**
+     * Queues a refresh that replaces the next settle notification. Postpones an already queued refresh.
+     *
+     * @param watchDir
+     * @param listener
+     */
+    public void queue(DirectoryWatcher watchDir, WatcherListener listener) {
+        if (!running) {
+            return;
         }
+        Debouncer debouncer = getDebouncer(watchDir, listener);
+        debouncer.refresh.set(true);
+        debouncer.postpone();
     }
 
     /**
-     * Re-queues a refresh or awaits it.
+     * Postpones a queued refresh without blocking. Events that happen while a refresh is running aren't covered by it,
+     * so they have to be processed.
      *
      * @param watchDir
-     * @return true if queued refresh was requeued, false if none existed
+     * @return true if a queued refresh was postponed, false if none is queued
      */
-    public boolean requeue(WatchDir watchDir, WatcherListener listener) {
+    public boolean requeue(DirectoryWatcher watchDir, WatcherListener listener) {
         if (!running) {
             return false;
         }
 
-        final WatcherTimerTask task = queuedRefreshTasks.get(watchDir);
-        if (task == null) {
+        Debouncer debouncer = debouncers.get(watchDir);
+        if (debouncer == null || !debouncer.refresh.get()) {
             return false;
         }
+        LOG.finest("Requeued refresh");
+        debouncer.postpone();
+        return true;
+    }
 
-        if (task.cancel()) {
-            LOG.finest("Requeued refresh");
-            // Queued task is canceled and then rescheduled
-            final WatcherTimerTask newTask = new WatcherTimerTask(watchDir, listener);
-            if (!queuedRefreshTasks.replace(watchDir, task, newTask)) {
-                // Since queuing is single-threaded this replace must always succeed, but just to be safe
-                queuedRefreshTasks.put(watchDir, newTask);
+    private Debouncer getDebouncer(DirectoryWatcher watchDir, WatcherListener listener) {
+        Debouncer debouncer = debouncers.get(watchDir);
+        if (debouncer == null) {
+            debouncer = new Debouncer(listener);
+            Debouncer previous = debouncers.putIfAbsent(watchDir, debouncer);
+            if (previous != null) {
+                debouncer = previous;
             }
-            timer.schedule(newTask, DEFAULT_TIMEOUT);
-            return true;
         }
-
-        LOG.finest("Awaiting refresh");
-        task.await();
-        LOG.finest("Awaited refresh");
-        return false;
+        debouncer.listener = listener;
+        return debouncer;
     }
 
-    private class WatcherTimerTask extends TimerTask {
+    /**
+     * The reusable debounce state of a watched directory.
+     */
+    private class Debouncer implements Runnable {
 
-        private final WatchDir watchDir;
-        private final WatcherListener listener;
-        private final Object lock = new Object();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final AtomicBoolean refresh = new AtomicBoolean();
+        private volatile long deadline;
+        private volatile WatcherListener listener;
 
-        public WatcherTimerTask(WatchDir watchDir, WatcherListener listener) {
-            this.watchDir = watchDir;
+        public Debouncer(WatcherListener listener) {
             this.listener = listener;
         }
 
-        @Override
-        public boolean cancel() {
-            boolean prevented = super.cancel();
-            return prevented;
+        public void postpone() {
+            deadline = System.nanoTime() + timeoutNanos;
+            if (scheduled.compareAndSet(false, true)) {
+                schedule(timeoutNanos);
+            }
+        }
+
+        private void schedule(long delayNanos) {
+            try {
+                executor.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException ex) {
+                // Shut down in the meantime
+                scheduled.set(false);
+            }
         }
 
         @Override
         public void run() {
-            synchronized (lock) {
-                try {
+            long remaining = deadline - System.nanoTime();
+            if (remaining > 0) {
+                // Changes happened since the notification was scheduled
+                schedule(remaining);
+                return;
+            }
+
+            // Reset before notifying so that changes during the notification schedule a new one
+            scheduled.set(false);
+            try {
+                if (refresh.getAndSet(false)) {
                     LOG.finest("Refreshing");
                     listener.refresh();
-                } catch (RuntimeException ex) {
-                    logException(ex);
-                } finally {
-                    // Remove the runnable from the queue
-                    queuedRefreshTasks.remove(watchDir, this);
-                    LOG.finest("Refreshed");
+                } else {
+                    listener.settled();
                 }
-            }
-        }
-
-        public void await() {
-            // The task is currently running, so wait until it's done
-            // TODO: maybe do a timed wait and reschedule refresh if time exceeded
-            synchronized (lock) {
-                return;
+            } catch (RuntimeException ex) {
+                logException(ex);
             }
         }
 
         private void logException(Throwable e) {
             LOG.log(Level.SEVERE, "An error occurred in the watcher timer service!", e);
         }
-
     }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+(function () {
+    if (!window.EventSource) {
+        return;
+    }
+
+    function pathOf(url) {
+        var a = document.createElement('a');
+        a.href = url;
+        var path = a.pathname.charAt(0) === '/' ? a.pathname : '/' + a.pathname;
+        return path.charAt(path.length - 1) === '/' ? path + 'index.html' : path;
+    }
+
+    function swapStylesheets(paths) {
+        var links = document.querySelectorAll('link[rel="stylesheet"][href]');
+        for (var i = 0; i < links.length; i++) {
+            var href = links[i].getAttribute('href');
+            if (paths[pathOf(href)]) {
+                var stripped = href.replace(/([?&])livereload=\d+&?/, '$1').replace(/[?&]$/, '');
+                links[i].setAttribute('href', stripped + (stripped.indexOf('?') === -1 ? '?' : '&') + 'livereload=' + new Date().getTime());
+            }
+        }
+    }
+
+    function usesResource(paths) {
+        var elements = document.querySelectorAll('script[src], img[src], link[href]:not([rel="stylesheet"])');
+        for (var i = 0; i < elements.length; i++) {
+            if (paths[pathOf(elements[i].getAttribute('src') || elements[i].getAttribute('href'))]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The events are served next to the script, below the context path of the site
+    var script = document.currentScript;
+    var source = new EventSource(script ? script.src.replace(/\.js$/, '') : '/_jbake/livereload');
+    source.addEventListener('reload', function (event) {
+        var data = JSON.parse(event.data);
+        if (data.all) {
+            location.reload();
+            return;
+        }
+
+        var paths = {};
+        var stylesheets = false;
+        for (var i = 0; i < data.paths.length; i++) {
+            paths[data.paths[i]] = true;
+            stylesheets = stylesheets || /\.css$/.test(data.paths[i]);
+        }
+
+        if (paths[pathOf(location.href)] || usesResource(paths)) {
+            location.reload();
+        } else if (stylesheets) {
+            swapStylesheets(paths);
+        }
+    });
+})();
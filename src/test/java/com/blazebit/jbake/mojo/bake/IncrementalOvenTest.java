@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 Blazebit.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.blazebit.jbake.mojo.bake;
+
+import com.blazebit.jbake.mojo.watcher.ChangeSet;
+import org.jbake.app.configuration.JBakeConfiguration;
+import org.jbake.app.configuration.JBakeConfigurationFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author Christian Beikov
+ */
+public class IncrementalOvenTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File source;
+    private File destination;
+    private IncrementalOven oven;
+    private volatile boolean cancelAfterDelete;
+
+    @Before
+    public void setUp() throws Exception {
+        source = folder.newFolder("site");
+        destination = folder.newFolder("output");
+        write("jbake.properties", "render.feed=false\nrender.archive=false\nrender.tags=true\nrender.sitemap=false\n");
+        write("templates/index.ftl", "<#list published_posts as post>[${post.title}]</#list>");
+        write("templates/post.ftl", "${content.title}");
+        write("templates/page.ftl", "${content.title}");
+        write("templates/tags.ftl", "${tag}");
+        writePost("first", "First", "a");
+        writePost("second", "Second", "b");
+
+        JBakeConfiguration config = new JBakeConfigurationFactory().createDefaultJbakeConfiguration(source, destination, true);
+        oven = new IncrementalOven(config) {
+            @Override
+            void checkCancelled() {
+                if (cancelAfterDelete && !new File(destination, "blog/second.html").exists()) {
+                    throw new BakeCancelledException();
+                }
+                super.checkCancelled();
+            }
+        };
+        oven.bake();
+    }
+
+    @After
+    public void tearDown() {
+        if (oven != null) {
+            oven.close();
+        }
+    }
+
+    @Test
+    public void testCancelledDeleteIsListedAfterRetry() throws Exception {
+        assertTrue(read("index.html").contains("[Second]"));
+        assertTrue(new File(destination, "tags/b.html").isFile());
+
+        File deleted = new File(source, "content/blog/second.html");
+        Files.delete(deleted.toPath());
+        ChangeSet changes = new ChangeSet();
+        changes.add(deleted.toPath(), ChangeSet.Kind.DELETED);
+
+        // Cancels at the first check after the output of the deleted document is gone, before anything is rendered
+        cancelAfterDelete = true;
+        try {
+            oven.bake(changes);
+            fail("Expected the bake to be cancelled");
+        } catch (BakeCancelledException ex) {
+            // Expected
+        }
+
+        cancelAfterDelete = false;
+        oven.bake(changes);
+        assertTrue(oven.getErrors().isEmpty());
+        assertFalse(read("index.html").contains("[Second]"));
+        assertTrue(read("index.html").contains("[First]"));
+        assertFalse(new File(destination, "tags/b.html").exists());
+    }
+
+    private void writePost(String name, String title, String tag) throws IOException {
+        write("content/blog/" + name + ".html", "title=" + title + "\ndate=2016-01-01\ntype=post\ntags=" + tag + "\nstatus=published\n~~~~~~\n<p>" + title + "</p>\n");
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(source, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(UTF_8));
+    }
+
+    private String read(String path) throws IOException {
+        return new String(Files.readAllBytes(new File(destination, path).toPath()), UTF_8);
+    }
+}